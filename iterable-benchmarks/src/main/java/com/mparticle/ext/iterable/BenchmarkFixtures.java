@@ -0,0 +1,150 @@
+package com.mparticle.ext.iterable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mparticle.sdk.model.MessageSerializer;
+import com.mparticle.sdk.model.eventprocessing.*;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Builds the mParticle requests the benchmarks process from the fixtures of the unit tests, which
+ * the build adds to the benchmark resources:
+ *
+ * - the batch of iterable-extension's queueTrigger.json, a user with an email and a customer ID,
+ * - the iOS batch of iterable-ingress-extension's tests, which has more user attributes and a
+ *   product action; the action is made a purchase, since that's the one the extension tracks.
+ *
+ * A batch of any size repeats the events of both, with new IDs and increasing timestamps.
+ */
+class BenchmarkFixtures {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final MessageSerializer serializer = new MessageSerializer();
+  private static final ObjectNode queueBatch = readQueueBatch();
+  private static final ObjectNode iosBatch = (ObjectNode) readJson("/EventProcessingRequest_ios.json");
+
+  private BenchmarkFixtures() {
+  }
+
+  static IterableExtension createExtension() {
+    IterableExtensionLogger logger = new IterableExtensionLogger("benchmark", new BlobbyClient(), false);
+    return new IterableExtension(logger, StubIterableService.create());
+  }
+
+  static EventProcessingRequest createBatch(int eventCount) {
+    List<JsonNode> templates = getEventTemplates();
+    ObjectNode batch = queueBatch.deepCopy();
+    batch.put("id", UUID.randomUUID().toString());
+    ArrayNode events = batch.putArray("events");
+    long timestamp = batch.get("timestamp_ms").asLong();
+    for (int i = 0; i < eventCount; i++) {
+      ObjectNode event = templates.get(i % templates.size()).deepCopy();
+      event.put("id", UUID.randomUUID().toString());
+      event.put("timestamp_ms", timestamp + i * 1000L);
+      events.add(event);
+    }
+    return deserialize(batch, EventProcessingRequest.class);
+  }
+
+  /**
+   * The user attributes of both fixtures, which mix booleans, numbers and strings.
+   */
+  static Map<String, String> createUserAttributes() {
+    Map<String, String> attributes = new HashMap<>();
+    attributes.putAll(deserialize(queueBatch, EventProcessingRequest.class).getUserAttributes());
+    attributes.putAll(deserialize(iosBatch, EventProcessingRequest.class).getUserAttributes());
+    return attributes;
+  }
+
+  /**
+   * The attributes of every event of both fixtures.
+   */
+  static Map<String, String> createEventAttributes() {
+    Map<String, String> attributes = new HashMap<>();
+    for (JsonNode event : getEventTemplates()) {
+      event.path("attributes").fields().forEachRemaining(field -> attributes.put(field.getKey(), field.getValue().asText()));
+    }
+    return attributes;
+  }
+
+  static Product createProduct() {
+    EventProcessingRequest request = deserialize(iosBatch, EventProcessingRequest.class);
+    for (Event event : request.getEvents()) {
+      if (event instanceof ProductActionEvent) {
+        return ((ProductActionEvent) event).getProducts().get(0);
+      }
+    }
+    throw new IllegalStateException("EventProcessingRequest_ios.json has no product action");
+  }
+
+  static CustomEvent createSubscriptionEvent(EventProcessingRequest request) {
+    CustomEvent event = new CustomEvent();
+    event.setName(IterableExtension.UPDATE_SUBSCRIPTIONS_CUSTOM_EVENT_NAME);
+    event.setRequest(request);
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(IterableExtension.EMAIL_LIST_ID_LIST_KEY, "1, 2, 3, 4, 5");
+    attributes.put(IterableExtension.UNSUBSCRIBE_CHANNEL_ID_LIST_KEY, "10, 11");
+    attributes.put(IterableExtension.UNSUBSCRIBE_MESSAGE_TYPE_ID_LIST_KEY, "20, 21, 22");
+    attributes.put(IterableExtension.CAMPAIGN_ID_KEY, "12345");
+    attributes.put(IterableExtension.TEMPLATE_ID_KEY, "54321");
+    event.setAttributes(attributes);
+    return event;
+  }
+
+  static String readResource(String name) {
+    try (InputStream input = BenchmarkFixtures.class.getResourceAsStream(name)) {
+      if (input == null) {
+        throw new IllegalStateException("Missing benchmark resource " + name);
+      }
+      return IOUtils.toString(input, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static List<JsonNode> getEventTemplates() {
+    List<JsonNode> templates = new ArrayList<>();
+    queueBatch.get("events").forEach(templates::add);
+    for (JsonNode event : iosBatch.get("events")) {
+      ObjectNode template = event.deepCopy();
+      if ("product_action".equals(template.path("type").asText())) {
+        template.put("action", "purchase");
+      }
+      templates.add(template);
+    }
+    return templates;
+  }
+
+  private static ObjectNode readQueueBatch() {
+    JsonNode trigger = readJson("/queueTrigger.json");
+    return (ObjectNode) readJson(trigger.get("Records").get(0).get("body").asText(), "queueTrigger.json");
+  }
+
+  private static JsonNode readJson(String resource) {
+    return readJson(readResource(resource), resource);
+  }
+
+  private static JsonNode readJson(String json, String source) {
+    try {
+      return mapper.readTree(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to parse " + source, e);
+    }
+  }
+
+  private static <T> T deserialize(JsonNode json, Class<T> type) {
+    try {
+      return serializer.deserialize(mapper.writeValueAsString(json), type);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableService;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a cold start in a fresh JVM, with and without priming. init builds the endpoint the
+ * way the Lambda init phase does; initAndFirstResponse also times the first handleRequest, so the
+ * difference between the two is the latency of the first request. Run it with enough forks to get
+ * a distribution.
+ *
+ * Nothing the endpoint uses is loaded outside the measured methods: the Iterable API is answered
+ * by the JDK's HTTP server rather than the OkHttp based FakeIterableServer, and the trigger is read
+ * without commons-io.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+@State(Scope.Benchmark)
+public class ColdStartBenchmark {
+
+  private static final String SUCCESS_BODY = "{\"msg\":\"\",\"code\":\"Success\",\"params\":null}";
+  private static final String BULK_SUCCESS_BODY = "{\"successCount\":1,\"failCount\":0}";
+
+  @Param({"false", "true"})
+  public boolean primed;
+
+  private HttpServer server;
+  private String serverUrl;
+  private byte[] trigger;
+  private IterableLambdaEndpoint endpoint;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", exchange -> {
+      String path = exchange.getRequestURI().getPath();
+      boolean isBulk = path.endsWith("Bulk") || path.endsWith("bulkUpdate") || path.startsWith("/api/lists/");
+      byte[] body = (isBulk ? BULK_SUCCESS_BODY : SUCCESS_BODY).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream responseBody = exchange.getResponseBody()) {
+        responseBody.write(body);
+      }
+    });
+    server.start();
+    serverUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    try (InputStream input = ColdStartBenchmark.class.getResourceAsStream(IterableLambdaEndpoint.PRIMING_TRIGGER_RESOURCE)) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      trigger = bytes.toByteArray();
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void closeEndpoint() {
+    if (endpoint != null) {
+      endpoint.close();
+      endpoint = null;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Benchmark
+  public IterableLambdaEndpoint init() {
+    return createEndpoint();
+  }
+
+  @Benchmark
+  public byte[] initAndFirstResponse() throws IOException {
+    createEndpoint();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    endpoint.handleRequest(new ByteArrayInputStream(trigger), output, LoadTestHarness.createContext());
+    return output.toByteArray();
+  }
+
+  private IterableLambdaEndpoint createEndpoint() {
+    IterableService iterableService = IterableService.newInstance(HttpUrl.parse(serverUrl), IterableService.newHttpClient());
+    endpoint = new IterableLambdaEndpoint(iterableService, new BlobbyClient() {
+      @Override
+      public String log(String msg) {
+        return "Logging to Blobby is disabled during benchmarks";
+      }
+    });
+    if (primed) {
+      endpoint.prime();
+    }
+    return endpoint;
+  }
+}
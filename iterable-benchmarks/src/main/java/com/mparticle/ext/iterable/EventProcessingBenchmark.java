@@ -0,0 +1,39 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a full processEventProcessingRequest against a stubbed IterableService, for batches
+ * of 1, 50 and 500 events.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventProcessingBenchmark {
+
+  @Param({"1", "50", "500"})
+  public int eventCount;
+
+  private IterableExtension extension;
+  private EventProcessingRequest request;
+
+  @Setup
+  public void setup() {
+    extension = BenchmarkFixtures.createExtension();
+    // The batch is already sorted and has an email, so processing it doesn't change it.
+    request = BenchmarkFixtures.createBatch(eventCount);
+  }
+
+  @Benchmark
+  public EventProcessingResponse processEventProcessingRequest() throws IOException {
+    return extension.processEventProcessingRequest(request);
+  }
+}
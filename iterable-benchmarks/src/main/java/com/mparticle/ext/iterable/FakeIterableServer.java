@@ -0,0 +1,84 @@
+package com.mparticle.ext.iterable;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for api.iterable.com that answers every IterableService endpoint with a
+ * successful response after a fixed latency. A share of requests can be answered with 429 (with a
+ * Retry-After header) or 502 instead.
+ */
+class FakeIterableServer implements Closeable {
+
+  private static final String SUCCESS_BODY = "{\"msg\":\"\",\"code\":\"Success\",\"params\":null}";
+  private static final String BULK_SUCCESS_BODY = "{\"successCount\":1,\"failCount\":0}";
+
+  final AtomicInteger requestCount = new AtomicInteger();
+  final AtomicInteger throttledCount = new AtomicInteger();
+  final AtomicInteger badGatewayCount = new AtomicInteger();
+  final Map<String, AtomicInteger> requestCountByPath = new ConcurrentHashMap<>();
+  private final MockWebServer server = new MockWebServer();
+
+  /**
+   * @param latencyMillis how long every response takes
+   * @param throttleRatio the share of requests answered with 429
+   * @param badGatewayRatio the share of requests answered with 502
+   * @param retryAfterSeconds the Retry-After sent with each 429
+   */
+  FakeIterableServer(long latencyMillis, double throttleRatio, double badGatewayRatio, int retryAfterSeconds) {
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        String path = request.getPath();
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+          path = path.substring(0, queryStart);
+        }
+        requestCount.incrementAndGet();
+        requestCountByPath.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+        if (latencyMillis > 0) {
+          Thread.sleep(latencyMillis);
+        }
+
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if (roll < throttleRatio) {
+          throttledCount.incrementAndGet();
+          return new MockResponse()
+              .setResponseCode(429)
+              .setHeader("Retry-After", String.valueOf(retryAfterSeconds))
+              .setBody("{\"msg\":\"Rate limit exceeded\",\"code\":\"RateLimitExceeded\",\"params\":null}");
+        } else if (roll < throttleRatio + badGatewayRatio) {
+          badGatewayCount.incrementAndGet();
+          return new MockResponse().setResponseCode(502).setBody("Bad Gateway");
+        }
+        boolean isBulk = path.endsWith("Bulk") || path.endsWith("bulkUpdate") || path.startsWith("/api/lists/");
+        return new MockResponse()
+            .setHeader("Content-Type", "application/json")
+            .setBody(isBulk ? BULK_SUCCESS_BODY : SUCCESS_BODY);
+      }
+    });
+  }
+
+  void start() throws IOException {
+    server.start();
+  }
+
+  HttpUrl url() {
+    return server.url("/");
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.shutdown();
+  }
+}
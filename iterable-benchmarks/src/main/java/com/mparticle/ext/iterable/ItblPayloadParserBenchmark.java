@@ -0,0 +1,38 @@
+package com.mparticle.ext.iterable;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks ItblPayloadParser on the iOS and Android push payloads of its unit tests. Compare a
+ * change against the jmh-result.json of a baseline run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ItblPayloadParserBenchmark {
+
+  private String iosPayload;
+  private String androidPayload;
+
+  @Setup
+  public void setup() {
+    iosPayload = BenchmarkFixtures.readResource("/pushPayload_ios.json");
+    androidPayload = BenchmarkFixtures.readResource("/pushPayload_android.json");
+  }
+
+  @Benchmark
+  public ItblPayloadParser.ItblPayload parseIos() throws IOException {
+    return ItblPayloadParser.parse(iosPayload);
+  }
+
+  @Benchmark
+  public ItblPayloadParser.ItblPayload parseAndroid() throws IOException {
+    return ItblPayloadParser.parse(androidPayload);
+  }
+}
@@ -0,0 +1,73 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.CommerceItem;
+import com.mparticle.iterable.UpdateSubscriptionsRequest;
+import com.mparticle.sdk.model.eventprocessing.CustomEvent;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+import com.mparticle.sdk.model.eventprocessing.Product;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-event and per-attribute helpers of the IterableExtension.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IterableExtensionBenchmark {
+
+  private IterableExtension extension;
+  private Map<String, String> userAttributes;
+  private Map<String, String> eventAttributes;
+  private EventProcessingRequest placeholderRequest;
+  private Product product;
+  private CustomEvent subscriptionEvent;
+
+  @Setup
+  public void setup() {
+    extension = BenchmarkFixtures.createExtension();
+    userAttributes = BenchmarkFixtures.createUserAttributes();
+    eventAttributes = BenchmarkFixtures.createEventAttributes();
+    placeholderRequest = BenchmarkFixtures.createBatch(1);
+    // Without an email the placeholder is built from the customer ID
+    placeholderRequest.getUserIdentities().remove(0);
+    product = BenchmarkFixtures.createProduct();
+    subscriptionEvent = BenchmarkFixtures.createSubscriptionEvent(BenchmarkFixtures.createBatch(1));
+  }
+
+  @Benchmark
+  public Map<String, Object> attemptTypeConversion() {
+    return extension.attemptTypeConversion(userAttributes);
+  }
+
+  @Benchmark
+  public Map<String, Object> attemptTypeConversionEventAttributes() {
+    return extension.attemptTypeConversion(eventAttributes);
+  }
+
+  @Benchmark
+  public Map<String, Object> convertAttributes() {
+    return IterableExtension.convertAttributes(userAttributes, true);
+  }
+
+  @Benchmark
+  public String getPlaceholderEmail() throws IOException {
+    return extension.getPlaceholderEmail(placeholderRequest);
+  }
+
+  @Benchmark
+  public CommerceItem convertToCommerceItem() {
+    return extension.convertToCommerceItem(product, true);
+  }
+
+  @Benchmark
+  public UpdateSubscriptionsRequest generateSubscriptionRequest() {
+    return IterableExtension.generateSubscriptionRequest(subscriptionEvent);
+  }
+}
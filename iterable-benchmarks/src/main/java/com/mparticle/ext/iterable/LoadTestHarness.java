@@ -0,0 +1,180 @@
+package com.mparticle.ext.iterable;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mparticle.iterable.IterableService;
+import com.mparticle.sdk.model.MessageSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives IterableLambdaEndpoint.handleRequest with generated SQS triggers at a target rate
+ * against a FakeIterableServer, then reports invocation latency, Iterable calls per record and
+ * how many records would have been retried.
+ *
+ * Options are passed as --name=value; see Options for the defaults. The endpoint's feature flags
+ * are read from the environment as usual, so export e.g. CONCURRENT_REQUESTS_ENABLED=true before
+ * running to load-test them:
+ *
+ *   ./gradlew :iterable-benchmarks:loadTest -PloadTestArgs="--rate=20 --duration=60 --throttle=0.01"
+ */
+public class LoadTestHarness {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final MessageSerializer serializer = new MessageSerializer();
+
+  static class Options {
+    double invocationsPerSecond = 10;
+    int durationSeconds = 30;
+    int concurrency = 4;
+    int recordsPerTrigger = 10;
+    int eventsPerRecord = 20;
+    long latencyMillis = 20;
+    double throttleRatio = 0;
+    double badGatewayRatio = 0;
+    int retryAfterSeconds = 1;
+
+    static Options parse(String[] args) {
+      Options options = new Options();
+      for (String arg : args) {
+        String[] nameAndValue = arg.replaceFirst("^--", "").split("=", 2);
+        if (nameAndValue.length != 2) {
+          throw new IllegalArgumentException("Expected --name=value but got " + arg);
+        }
+        String value = nameAndValue[1];
+        switch (nameAndValue[0]) {
+          case "rate": options.invocationsPerSecond = Double.parseDouble(value); break;
+          case "duration": options.durationSeconds = Integer.parseInt(value); break;
+          case "concurrency": options.concurrency = Integer.parseInt(value); break;
+          case "records": options.recordsPerTrigger = Integer.parseInt(value); break;
+          case "events": options.eventsPerRecord = Integer.parseInt(value); break;
+          case "latency": options.latencyMillis = Long.parseLong(value); break;
+          case "throttle": options.throttleRatio = Double.parseDouble(value); break;
+          case "badGateway": options.badGatewayRatio = Double.parseDouble(value); break;
+          case "retryAfter": options.retryAfterSeconds = Integer.parseInt(value); break;
+          default: throw new IllegalArgumentException("Unknown option " + nameAndValue[0]);
+        }
+      }
+      return options;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Options options = Options.parse(args);
+    try (FakeIterableServer server = new FakeIterableServer(
+        options.latencyMillis, options.throttleRatio, options.badGatewayRatio, options.retryAfterSeconds)) {
+      server.start();
+      IterableService iterableService = IterableService.newInstance(server.url(), IterableService.newHttpClient());
+      try (IterableLambdaEndpoint endpoint = new IterableLambdaEndpoint(iterableService, new BlobbyClient() {
+        @Override
+        public String log(String msg) {
+          return "Logging to Blobby is disabled during load tests";
+        }
+      })) {
+        run(endpoint, options, server);
+      }
+    }
+  }
+
+  private static void run(IterableLambdaEndpoint endpoint, Options options, FakeIterableServer server)
+      throws Exception {
+    List<Long> latenciesNanos = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger retriedRecords = new AtomicInteger();
+    AtomicInteger failedInvocations = new AtomicInteger();
+    ExecutorService workers = Executors.newFixedThreadPool(options.concurrency);
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / options.invocationsPerSecond);
+    int invocationCount = (int) (options.invocationsPerSecond * options.durationSeconds);
+    CountDownLatch done = new CountDownLatch(invocationCount);
+    AtomicInteger scheduled = new AtomicInteger();
+
+    scheduler.scheduleAtFixedRate(() -> {
+      if (scheduled.getAndIncrement() >= invocationCount) {
+        return;
+      }
+      workers.submit(() -> {
+        try {
+          byte[] trigger = createTrigger(options);
+          ByteArrayOutputStream output = new ByteArrayOutputStream();
+          long start = System.nanoTime();
+          endpoint.handleRequest(new ByteArrayInputStream(trigger), output, createContext());
+          latenciesNanos.add(System.nanoTime() - start);
+          QueueTriggerResponse response = mapper.readValue(output.toByteArray(), QueueTriggerResponse.class);
+          retriedRecords.addAndGet(response.batchItemFailures.size());
+        } catch (Exception e) {
+          failedInvocations.incrementAndGet();
+        } finally {
+          done.countDown();
+        }
+      });
+    }, 0, periodNanos, TimeUnit.NANOSECONDS);
+
+    done.await();
+    scheduler.shutdownNow();
+    workers.shutdown();
+    report(options, invocationCount, latenciesNanos, retriedRecords.get(), failedInvocations.get(), server);
+  }
+
+  /**
+   * Every record gets a freshly generated batch, so batch and event IDs are never repeated.
+   */
+  private static byte[] createTrigger(Options options) throws Exception {
+    QueueTrigger trigger = new QueueTrigger();
+    trigger.records = new ArrayList<>(options.recordsPerTrigger);
+    for (int i = 0; i < options.recordsPerTrigger; i++) {
+      QueueMessageBody message = new QueueMessageBody();
+      message.messageId = UUID.randomUUID().toString();
+      message.body = serializer.serialize(BenchmarkFixtures.createBatch(options.eventsPerRecord));
+      trigger.records.add(message);
+    }
+    return mapper.writeValueAsBytes(trigger);
+  }
+
+  static Context createContext() {
+    String awsRequestId = UUID.randomUUID().toString();
+    return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class},
+        (proxy, method, args) -> {
+          if (method.getName().equals("getAwsRequestId")) {
+            return awsRequestId;
+          } else if (method.getReturnType() == int.class) {
+            return 0;
+          }
+          return null;
+        });
+  }
+
+  private static void report(Options options, int invocationCount, List<Long> latenciesNanos, int retriedRecords,
+                             int failedInvocations, FakeIterableServer server) {
+    List<Long> sorted = new ArrayList<>(latenciesNanos);
+    Collections.sort(sorted);
+    int recordCount = invocationCount * options.recordsPerTrigger;
+    System.out.println();
+    System.out.println("Invocations:              " + invocationCount + " (" + failedInvocations + " threw)");
+    System.out.println("Records:                  " + recordCount);
+    System.out.println("Invocation latency p50:   " + percentileMillis(sorted, 0.50) + " ms");
+    System.out.println("Invocation latency p99:   " + percentileMillis(sorted, 0.99) + " ms");
+    System.out.println("Invocation latency max:   " + percentileMillis(sorted, 1.0) + " ms");
+    System.out.println("Iterable calls:           " + server.requestCount.get());
+    System.out.printf("Iterable calls per record: %.2f%n", (double) server.requestCount.get() / recordCount);
+    System.out.println("Injected 429s / 502s:     " + server.throttledCount.get() + " / " + server.badGatewayCount.get());
+    System.out.println("Records to retry:         " + retriedRecords);
+    for (Map.Entry<String, AtomicInteger> entry : new TreeMap<>(server.requestCountByPath).entrySet()) {
+      System.out.println("  " + entry.getKey() + ": " + entry.getValue().get());
+    }
+  }
+
+  private static double percentileMillis(List<Long> sortedNanos, double percentile) {
+    if (sortedNanos.isEmpty()) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+    long nanos = sortedNanos.get(Math.max(0, Math.min(index, sortedNanos.size() - 1)));
+    return nanos / 1e6;
+  }
+}
@@ -0,0 +1,87 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableApiResponse;
+import com.mparticle.iterable.IterableService;
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+
+/**
+ * An IterableService whose calls succeed immediately without touching the network, so the
+ * benchmarks measure only the extension's own work.
+ */
+class StubIterableService {
+
+  private static final Request STUB_REQUEST = new Request.Builder()
+      .url("https://" + IterableService.HOST + "/api/stub")
+      .build();
+
+  private StubIterableService() {
+  }
+
+  static IterableService create() {
+    return (IterableService) Proxy.newProxyInstance(
+        IterableService.class.getClassLoader(),
+        new Class<?>[]{IterableService.class},
+        (proxy, method, args) -> {
+          Type bodyType = ((ParameterizedType) method.getGenericReturnType()).getActualTypeArguments()[0];
+          return new StubCall<>(createBody((Class<?>) bodyType));
+        });
+  }
+
+  private static Object createBody(Class<?> bodyClass) throws ReflectiveOperationException {
+    Object body = bodyClass.newInstance();
+    if (body instanceof IterableApiResponse) {
+      ((IterableApiResponse) body).code = IterableApiResponse.SUCCESS_MESSAGE;
+    }
+    return body;
+  }
+
+  private static class StubCall<T> implements Call<T> {
+    private final T body;
+
+    StubCall(T body) {
+      this.body = body;
+    }
+
+    @Override
+    public Response<T> execute() throws IOException {
+      return Response.success(body);
+    }
+
+    @Override
+    public void enqueue(Callback<T> callback) {
+      callback.onResponse(this, Response.success(body));
+    }
+
+    @Override
+    public boolean isExecuted() {
+      return false;
+    }
+
+    @Override
+    public void cancel() {
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return false;
+    }
+
+    @Override
+    public Call<T> clone() {
+      return new StubCall<>(body);
+    }
+
+    @Override
+    public Request request() {
+      return STUB_REQUEST;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.registration.Account;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.mparticle.ext.iterable.IterableExtension.*;
+
+/**
+ * The account settings the extension reads, parsed once. Instances are immutable and cached
+ * across warm invocations by the contents of the account's settings map, so every request of
+ * the same account shares one AccountConfig.
+ */
+public class AccountConfig {
+
+  static final int MAX_CACHED_CONFIGS = 1000;
+  private static final Map<Map<String, String>, AccountConfig> cache =
+      new LinkedHashMap<Map<String, String>, AccountConfig>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Map<String, String>, AccountConfig> eldest) {
+          return size() > MAX_CACHED_CONFIGS;
+        }
+      };
+
+  /**
+   * Null or empty when the API key setting is missing, so the caller can report it.
+   */
+  final String apiKey;
+  final boolean useMPID;
+  final boolean coerceStrings;
+  final String apnsKey;
+  final String apnsSandboxKey;
+  final String gcmName;
+
+  private AccountConfig(Account account) {
+    Map<String, String> settings = account.getAccountSettings();
+    this.apiKey = account.getStringSetting(SETTING_API_KEY, false, null);
+    this.useMPID = USER_ID_FIELD_MPID.equals(
+        account.getStringSetting(SETTING_USER_ID_FIELD, false, USER_ID_FIELD_CUSTOMER_ID));
+    this.coerceStrings = Boolean.parseBoolean(settings.get(SETTING_COERCE_STRINGS_TO_SCALARS));
+    this.apnsKey = settings.get(SETTING_APNS_KEY);
+    this.apnsSandboxKey = settings.get(SETTING_APNS_SANDBOX_KEY);
+    this.gcmName = settings.get(SETTING_GCM_NAME_KEY);
+  }
+
+  public static AccountConfig forAccount(Account account) {
+    Map<String, String> settings = account.getAccountSettings();
+    synchronized (cache) {
+      AccountConfig config = cache.get(settings);
+      if (config == null) {
+        config = new AccountConfig(account);
+        // Copied, since the account's own map may still change
+        cache.put(new HashMap<>(settings), config);
+      }
+      return config;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.mparticle.ext.iterable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.mparticle.ext.iterable.IterableExtension.ITERABLE_RESERVED_PHONE_ATTR;
+import static com.mparticle.ext.iterable.IterableExtension.MPARTICLE_RESERVED_PHONE_ATTR;
+
+/**
+ * Converts mParticle user and product attributes to Iterable dataFields in a single pass,
+ * writing straight into one pre-sized map.
+ *
+ * mParticle's reserved $Mobile attribute is renamed to Iterable's phoneNumber field and
+ * stripped of everything but digits and '+'. It always stays a string, while the other values
+ * are optionally coerced with the ScalarClassifier.
+ */
+public class AttributeTransformer {
+
+  private AttributeTransformer() {
+  }
+
+  public static Map<String, Object> toDataFields(Map<String, String> attributes, boolean coerceStringsToScalars) {
+    if (attributes == null) {
+      return null;
+    }
+    // Sized so the map never resizes while it's filled
+    Map<String, Object> dataFields = new HashMap<>((int) (attributes.size() / 0.75f) + 1);
+    boolean hasMobile = attributes.containsKey(MPARTICLE_RESERVED_PHONE_ATTR);
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      String key = attribute.getKey();
+      String value = attribute.getValue();
+      if (MPARTICLE_RESERVED_PHONE_ATTR.equals(key)) {
+        dataFields.put(ITERABLE_RESERVED_PHONE_ATTR, normalizePhoneNumber(value));
+      } else if (hasMobile && ITERABLE_RESERVED_PHONE_ATTR.equals(key)) {
+        // $Mobile takes precedence, regardless of iteration order
+        continue;
+      } else {
+        dataFields.put(key, coerceStringsToScalars ? ScalarClassifier.coerce(value) : value);
+      }
+    }
+    return dataFields;
+  }
+
+  /**
+   * Keep only the digits and '+' signs of a phone number, e.g. "+1 (555) 010-9999" becomes
+   * "+15550109999". The value is returned as is when there's nothing to remove.
+   */
+  static String normalizePhoneNumber(String phoneNumber) {
+    if (phoneNumber == null) {
+      return null;
+    }
+    int length = phoneNumber.length();
+    int i = 0;
+    while (i < length && isPhoneChar(phoneNumber.charAt(i))) {
+      i++;
+    }
+    if (i == length) {
+      return phoneNumber;
+    }
+    StringBuilder normalized = new StringBuilder(length);
+    normalized.append(phoneNumber, 0, i);
+    for (; i < length; i++) {
+      char c = phoneNumber.charAt(i);
+      if (isPhoneChar(c)) {
+        normalized.append(c);
+      }
+    }
+    return normalized.toString();
+  }
+
+  private static boolean isPhoneChar(char c) {
+    return (c >= '0' && c <= '9') || c == '+';
+  }
+}
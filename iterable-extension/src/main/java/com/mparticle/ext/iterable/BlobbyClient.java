@@ -5,8 +5,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -14,13 +13,23 @@ import java.util.concurrent.TimeUnit;
  */
 public class BlobbyClient {
     private static final int TIMEOUT_SECONDS = 10;
+    /**
+     * The longest a single request can take before it times out: connecting, writing the body and
+     * reading the response each get the full timeout.
+     */
+    static final long MAX_REQUEST_MILLIS = TimeUnit.SECONDS.toMillis(3 * TIMEOUT_SECONDS);
     private static final OkHttpClient httpClient = new OkHttpClient.Builder()
             .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
             .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
             .build();
     private static final String BLOBBY_URL = "https://blobby.internal.prd-itbl.co/mparticle_logs";
 
-    public String log(String msg) {
+    /**
+     * @return the blobby ID of the logged payload
+     * @throws IOException if the request failed or Blobby didn't accept the payload
+     */
+    public String log(String msg) throws IOException {
         RequestBody body = RequestBody.create(MediaType.parse("text/plain"), msg);
         Request request = new Request.Builder()
                 .url(BLOBBY_URL)
@@ -28,15 +37,11 @@ public class BlobbyClient {
                 .build();
         okhttp3.Call call = httpClient.newCall(request);
 
-        String blobbyId;
-        try {
-            okhttp3.Response response = call.execute();
-            blobbyId = response.body().string();
-        } catch (Exception e) {
-            StringWriter sw = new StringWriter();
-            e.printStackTrace(new PrintWriter(sw));
-            blobbyId = sw.toString();
+        try (okhttp3.Response response = call.execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Blobby responded with HTTP " + response.code());
+            }
+            return response.body().string();
         }
-        return blobbyId;
     }
 }
@@ -0,0 +1,218 @@
+package com.mparticle.ext.iterable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ships log payloads to Blobby from a background thread so logging an error never waits on a
+ * Blobby round trip. Payloads queued together are sent as one Blobby request.
+ *
+ * Each payload gets a correlation ID up front, which the caller logs in place of the blobby ID.
+ * Once a request is sent, a log line maps its blobby ID to the correlation IDs it contains. An
+ * mParticle batch shared by several payloads of a request is only included once.
+ *
+ * Lambda freezes background threads between invocations, so the handler must call flush before
+ * it returns. When the queue is full, payloads are dropped and counted instead.
+ *
+ * The worker thread runs until close is called, so a shipper that's not shared for the life of
+ * the JVM, e.g. one per handler in a benchmark, has to be closed.
+ */
+public class BlobbyShipper {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+  private static final String MPARTICLE_BATCH_KEY = "mParticleBatch";
+  private static final Gson gson = new GsonBuilder().create();
+
+  private final BlobbyClient blobbyClient;
+  private final int queueCapacity;
+  private final int maxBatchSize;
+  private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+  private final AtomicLong droppedCount = new AtomicLong();
+  // Guards pending, the number of payloads that were queued but haven't been sent yet
+  private final Object lock = new Object();
+  private int pending;
+  private Thread worker;
+  private boolean closed;
+
+  public BlobbyShipper(BlobbyClient blobbyClient) {
+    this(blobbyClient, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE);
+  }
+
+  public BlobbyShipper(BlobbyClient blobbyClient, int queueCapacity, int maxBatchSize) {
+    this.blobbyClient = blobbyClient;
+    this.queueCapacity = queueCapacity;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Queue a payload for Blobby. The map is serialized on the background thread, so the caller
+   * must not change it afterwards.
+   *
+   * @return the correlation ID of the payload, or null if it was dropped because the queue is full
+   *     or the shipper is closed
+   */
+  public String submit(Map<String, String> message) {
+    synchronized (lock) {
+      if (pending >= queueCapacity || closed) {
+        droppedCount.incrementAndGet();
+        return null;
+      }
+      pending++;
+    }
+    String correlationId = UUID.randomUUID().toString();
+    queue.add(new Entry(correlationId, message));
+    ensureWorkerStarted();
+    return correlationId;
+  }
+
+  /**
+   * Wait until every queued payload has been sent to Blobby.
+   *
+   * @return false if payloads were still pending when the timeout expired
+   */
+  public boolean flush(long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (lock) {
+      while (pending > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        try {
+          lock.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of payloads dropped since the last call
+   */
+  public long getAndResetDroppedCount() {
+    return droppedCount.getAndSet(0);
+  }
+
+  /**
+   * Stop the worker thread. Payloads that haven't been sent yet are dropped, so call flush first
+   * to send them.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      pending = 0;
+      lock.notifyAll();
+    }
+    queue.clear();
+    synchronized (this) {
+      if (worker != null) {
+        worker.interrupt();
+      }
+    }
+  }
+
+  private synchronized void ensureWorkerStarted() {
+    if (worker == null && !isClosed()) {
+      worker = new Thread(this::run, "blobby-shipper");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  private boolean isClosed() {
+    synchronized (lock) {
+      return closed;
+    }
+  }
+
+  private void run() {
+    List<Entry> batch = new ArrayList<>(maxBatchSize);
+    while (!isClosed()) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, maxBatchSize - 1);
+      try {
+        ship(batch);
+      } catch (IOException | RuntimeException e) {
+        // Keep shipping later payloads; the correlation IDs of this batch just won't resolve.
+        Map<String, String> logMessage = new HashMap<>();
+        logMessage.put("message", "Failed to send log payloads to Blobby");
+        logMessage.put("correlationIds", getCorrelationIds(batch));
+        logMessage.put("error", e.toString());
+        System.out.println(gson.toJson(logMessage));
+      }
+      synchronized (lock) {
+        if (!closed) {
+          pending -= batch.size();
+        }
+        lock.notifyAll();
+      }
+      batch.clear();
+    }
+  }
+
+  private void ship(List<Entry> batch) throws IOException {
+    List<String> mparticleBatches = new ArrayList<>();
+    Map<String, Integer> batchIndexes = new IdentityHashMap<>();
+    List<Map<String, String>> entries = new ArrayList<>(batch.size());
+    for (Entry entry : batch) {
+      Map<String, String> message = new HashMap<>(entry.message);
+      message.put("correlationId", entry.correlationId);
+      String mparticleBatch = message.remove(MPARTICLE_BATCH_KEY);
+      if (mparticleBatch != null) {
+        Integer index = batchIndexes.get(mparticleBatch);
+        if (index == null) {
+          index = mparticleBatches.size();
+          mparticleBatches.add(mparticleBatch);
+          batchIndexes.put(mparticleBatch, index);
+        }
+        message.put("mParticleBatchIndex", String.valueOf(index));
+      }
+      entries.add(message);
+    }
+    Map<String, Object> payload = new HashMap<>();
+    payload.put("mParticleBatches", mparticleBatches);
+    payload.put("entries", entries);
+    String blobbyId = blobbyClient.log(gson.toJson(payload));
+
+    Map<String, String> logMessage = new HashMap<>();
+    logMessage.put("message", "Sent log payloads to Blobby");
+    logMessage.put("blobbyId", blobbyId);
+    logMessage.put("correlationIds", getCorrelationIds(batch));
+    System.out.println(gson.toJson(logMessage));
+  }
+
+  private static String getCorrelationIds(List<Entry> batch) {
+    StringBuilder correlationIds = new StringBuilder();
+    for (Entry entry : batch) {
+      if (correlationIds.length() > 0) {
+        correlationIds.append(',');
+      }
+      correlationIds.append(entry.correlationId);
+    }
+    return correlationIds.toString();
+  }
+
+  private static class Entry {
+    final String correlationId;
+    final Map<String, String> message;
+
+    Entry(String correlationId, Map<String, String> message) {
+      this.correlationId = correlationId;
+      this.message = message;
+    }
+  }
+}
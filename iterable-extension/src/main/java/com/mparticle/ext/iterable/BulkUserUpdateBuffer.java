@@ -0,0 +1,225 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.UserUpdateRequest;
+
+import java.util.*;
+
+/**
+ * Collects user updates from every record of an SQS trigger so they can be sent to Iterable's
+ * users/bulkUpdate endpoint. Updates for the same user are coalesced into a single entry where
+ * the most recent value wins for each field.
+ *
+ * Updates are kept separately until the buffer is drained, so the contributions of a message
+ * that will be redelivered can still be discarded.
+ */
+public class BulkUserUpdateBuffer {
+
+  private final int maxUsersPerRequest;
+  private final int maxPayloadBytes;
+  private final Map<String, Map<String, List<Contribution>>> usersByApiKey = new LinkedHashMap<>();
+  private String currentSource;
+
+  public BulkUserUpdateBuffer() {
+    this(TrackBulkBuffer.MAX_EVENTS_PER_REQUEST, TrackBulkBuffer.MAX_PAYLOAD_BYTES);
+  }
+
+  BulkUserUpdateBuffer(int maxUsersPerRequest, int maxPayloadBytes) {
+    this.maxUsersPerRequest = maxUsersPerRequest;
+    this.maxPayloadBytes = maxPayloadBytes;
+  }
+
+  /**
+   * Tag every update added from now on with the given source.
+   */
+  public void setCurrentSource(String source) {
+    this.currentSource = source;
+  }
+
+  /**
+   * @param timestamp the time of the mParticle batch the update came from, used to order fields
+   */
+  public void add(String apiKey, UserUpdateRequest request, UUID requestId, long timestamp) {
+    usersByApiKey.computeIfAbsent(apiKey, k -> new LinkedHashMap<>())
+        .computeIfAbsent(getUserKey(request), k -> new ArrayList<>())
+        .add(new Contribution(request, requestId, currentSource, timestamp));
+  }
+
+  /**
+   * Remove the updates buffered for the user of the request, so a caller that sends an update
+   * for the user right away can merge them into it instead of having them sent after it.
+   *
+   * @return the removed updates, which may be empty
+   */
+  List<Contribution> removeUser(String apiKey, UserUpdateRequest request) {
+    Map<String, List<Contribution>> users = usersByApiKey.get(apiKey);
+    List<Contribution> contributions = users != null ? users.remove(getUserKey(request)) : null;
+    return contributions != null ? contributions : Collections.emptyList();
+  }
+
+  /**
+   * Put back updates taken with removeUser, e.g. when the update they were merged into failed.
+   */
+  void restoreUser(String apiKey, List<Contribution> contributions) {
+    for (Contribution contribution : contributions) {
+      usersByApiKey.computeIfAbsent(apiKey, k -> new LinkedHashMap<>())
+          .computeIfAbsent(getUserKey(contribution.request), k -> new ArrayList<>())
+          .add(contribution);
+    }
+  }
+
+  private static String getUserKey(UserUpdateRequest request) {
+    return request.email != null && !request.email.isEmpty() ?
+        "email:" + request.email : "userId:" + request.userId;
+  }
+
+  /**
+   * Move the updates buffered for an email to the address it was changed to. Once Iterable has
+   * renamed the user, a bulk update sent for the old address would create a new profile for it.
+   */
+  public void renameEmail(String apiKey, String currentEmail, String newEmail) {
+    Map<String, List<Contribution>> users = usersByApiKey.get(apiKey);
+    if (users == null || currentEmail == null || newEmail == null || currentEmail.equals(newEmail)) {
+      return;
+    }
+    List<Contribution> contributions = users.remove("email:" + currentEmail);
+    if (contributions == null) {
+      return;
+    }
+    for (Contribution contribution : contributions) {
+      contribution.request.email = newEmail;
+    }
+    users.computeIfAbsent("email:" + newEmail, k -> new ArrayList<>()).addAll(contributions);
+  }
+
+  public void discardSource(String source) {
+    for (Map<String, List<Contribution>> users : usersByApiKey.values()) {
+      for (List<Contribution> contributions : users.values()) {
+        contributions.removeIf(contribution -> Objects.equals(source, contribution.source));
+      }
+      users.values().removeIf(List::isEmpty);
+    }
+  }
+
+  public boolean isEmpty() {
+    for (Map<String, List<Contribution>> users : usersByApiKey.values()) {
+      if (!users.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Coalesce and remove every buffered update, returning them split into chunks that fit in one
+   * bulk request.
+   */
+  public List<Chunk> drainChunks() {
+    List<Chunk> chunks = new ArrayList<>();
+    for (Map.Entry<String, Map<String, List<Contribution>>> apiKeyUsers : usersByApiKey.entrySet()) {
+      Chunk chunk = new Chunk(apiKeyUsers.getKey());
+      int chunkBytes = 0;
+      for (List<Contribution> contributions : apiKeyUsers.getValue().values()) {
+        if (contributions.isEmpty()) {
+          continue;
+        }
+        MergedUser user = merge(contributions);
+        int userBytes = estimateSize(user.request);
+        if ((chunk.users.size() >= maxUsersPerRequest || chunkBytes + userBytes > maxPayloadBytes)
+            && !chunk.users.isEmpty()) {
+          chunks.add(chunk);
+          chunk = new Chunk(apiKeyUsers.getKey());
+          chunkBytes = 0;
+        }
+        chunk.users.add(user);
+        chunkBytes += userBytes;
+      }
+      if (!chunk.users.isEmpty()) {
+        chunks.add(chunk);
+      }
+    }
+    usersByApiKey.clear();
+    return chunks;
+  }
+
+  static MergedUser merge(List<Contribution> contributions) {
+    List<Contribution> ordered = new ArrayList<>(contributions);
+    // Stable sort, so updates with equal timestamps keep their processing order
+    ordered.sort(Comparator.comparingLong(contribution -> contribution.timestamp));
+    MergedUser user = new MergedUser();
+    for (Contribution contribution : ordered) {
+      UserUpdateRequest request = contribution.request;
+      if (request.email != null) {
+        user.request.email = request.email;
+      }
+      if (request.userId != null) {
+        user.request.userId = request.userId;
+      }
+      if (request.dataFields != null) {
+        if (user.request.dataFields == null) {
+          user.request.dataFields = new HashMap<>(request.dataFields.size());
+        }
+        user.request.dataFields.putAll(request.dataFields);
+      }
+      user.latestDataFields = request.dataFields;
+      user.requestIds.add(contribution.requestId);
+      user.sources.add(contribution.source);
+    }
+    return user;
+  }
+
+  private static int estimateSize(UserUpdateRequest request) {
+    int size = 64 + length(request.email) + length(request.userId);
+    if (request.dataFields != null) {
+      for (Map.Entry<String, Object> field : request.dataFields.entrySet()) {
+        size += 8 + length(field.getKey()) + length(String.valueOf(field.getValue()));
+      }
+    }
+    return size;
+  }
+
+  private static int length(String value) {
+    return value == null ? 0 : value.length();
+  }
+
+  static class Contribution {
+    final UserUpdateRequest request;
+    final UUID requestId;
+    final String source;
+    final long timestamp;
+
+    Contribution(UserUpdateRequest request, UUID requestId, String source, long timestamp) {
+      this.request = request;
+      this.requestId = requestId;
+      this.source = source;
+      this.timestamp = timestamp;
+    }
+  }
+
+  public static class MergedUser {
+    final UserUpdateRequest request = new UserUpdateRequest();
+    /**
+     * The dataFields of the most recent update, which is what a later record for the user that
+     * changes nothing would have.
+     */
+    Map<String, Object> latestDataFields;
+    final List<UUID> requestIds = new ArrayList<>();
+    final Set<String> sources = new LinkedHashSet<>();
+  }
+
+  public static class Chunk {
+    final String apiKey;
+    final List<MergedUser> users = new ArrayList<>();
+
+    Chunk(String apiKey) {
+      this.apiKey = apiKey;
+    }
+
+    Set<String> getSources() {
+      Set<String> sources = new LinkedHashSet<>();
+      for (MergedUser user : users) {
+        sources.addAll(user.sources);
+      }
+      return sources;
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package com.mparticle.ext.iterable;
+
+/**
+ * Records which Iterable calls have already been handled so that a batch redelivered by SQS
+ * doesn't send them again. Keys are opaque strings built by the IterableExtension.
+ *
+ * Implementations must be safe to call from multiple threads. An implementation backed by an
+ * external table (e.g. DynamoDB with a TTL) makes checkpoints visible to every Lambda container.
+ */
+public interface CheckpointStore {
+
+  boolean isCompleted(String key);
+
+  void markCompleted(String key);
+}
@@ -0,0 +1,151 @@
+package com.mparticle.ext.iterable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the recent outcomes of calls to one Iterable endpoint and stops sending requests while
+ * the endpoint looks degraded. Breakers live in static state so they carry over between warm
+ * invocations of the Lambda.
+ *
+ * The breaker opens once at least MIN_CALLS of the last WINDOW_SIZE calls have completed and the
+ * share of failures reaches the failure ratio. While open, calls are rejected without being sent.
+ * After the open duration a single probe call is let through (half-open): if it succeeds the
+ * breaker closes, otherwise it opens again.
+ */
+public class CircuitBreaker {
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  static final int WINDOW_SIZE = 20;
+  static final int MIN_CALLS = 10;
+  static final double FAILURE_RATIO =
+      parseDouble(System.getenv("CIRCUIT_BREAKER_FAILURE_RATIO"), 0.5);
+  static final long OPEN_DURATION_MILLIS =
+      (long) parseDouble(System.getenv("CIRCUIT_BREAKER_OPEN_MS"), 30000);
+  private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+  private final double failureRatio;
+  private final long openDurationMillis;
+  private final boolean[] outcomes = new boolean[WINDOW_SIZE];
+  private int callCount = 0;
+  private int failureCount = 0;
+  private int nextOutcome = 0;
+  private State state = State.CLOSED;
+  private long openedAtMillis;
+  private boolean isProbeInFlight = false;
+
+  CircuitBreaker(double failureRatio, long openDurationMillis) {
+    this.failureRatio = failureRatio;
+    this.openDurationMillis = openDurationMillis;
+  }
+
+  /**
+   * @param path the encoded path of an Iterable endpoint, e.g. "/api/events/track"
+   */
+  public static CircuitBreaker forPath(String path) {
+    return breakers.computeIfAbsent(path, k -> new CircuitBreaker(FAILURE_RATIO, OPEN_DURATION_MILLIS));
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return true if a call may be sent now. A caller that gets true must report the outcome with
+   * recordSuccess, recordFailure or release.
+   */
+  public synchronized boolean tryAcquire(long nowMillis) {
+    if (state == State.OPEN && nowMillis - openedAtMillis >= openDurationMillis) {
+      state = State.HALF_OPEN;
+    }
+    if (state == State.CLOSED) {
+      return true;
+    }
+    if (state == State.HALF_OPEN && !isProbeInFlight) {
+      isProbeInFlight = true;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the new state if the call changed it, otherwise null
+   */
+  public synchronized State recordSuccess() {
+    if (state == State.HALF_OPEN) {
+      isProbeInFlight = false;
+      resetWindow();
+      state = State.CLOSED;
+      return state;
+    }
+    addOutcome(false);
+    return null;
+  }
+
+  /**
+   * @return the new state if the call changed it, otherwise null
+   */
+  public synchronized State recordFailure(long nowMillis) {
+    if (state == State.HALF_OPEN) {
+      isProbeInFlight = false;
+      return open(nowMillis);
+    }
+    if (state == State.OPEN) {
+      return null;
+    }
+    addOutcome(true);
+    if (callCount >= MIN_CALLS && failureCount >= failureRatio * callCount) {
+      return open(nowMillis);
+    }
+    return null;
+  }
+
+  /**
+   * Give back an acquired call that finished without telling us anything about the endpoint.
+   */
+  public synchronized void release() {
+    if (state == State.HALF_OPEN) {
+      isProbeInFlight = false;
+    }
+  }
+
+  private State open(long nowMillis) {
+    resetWindow();
+    state = State.OPEN;
+    openedAtMillis = nowMillis;
+    return state;
+  }
+
+  private void addOutcome(boolean isFailure) {
+    if (callCount == WINDOW_SIZE) {
+      if (outcomes[nextOutcome]) {
+        failureCount--;
+      }
+    } else {
+      callCount++;
+    }
+    outcomes[nextOutcome] = isFailure;
+    if (isFailure) {
+      failureCount++;
+    }
+    nextOutcome = (nextOutcome + 1) % WINDOW_SIZE;
+  }
+
+  private void resetWindow() {
+    callCount = 0;
+    failureCount = 0;
+    nextOutcome = 0;
+  }
+
+  private static double parseDouble(String value, double defaultValue) {
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
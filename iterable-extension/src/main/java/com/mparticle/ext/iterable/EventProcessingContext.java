@@ -0,0 +1,221 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.eventprocessing.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything the extension derives from an EventProcessingRequest, worked out once and shared
+ * by every stage that processes the request: its AccountConfig, the events it needs to handle
+ * outside of the SDK's per-event dispatch, the user's identities and the converted user
+ * attributes.
+ *
+ * The events and identities are each indexed in a single pass the first time they're needed.
+ */
+class EventProcessingContext {
+
+  final EventProcessingRequest request;
+  final AccountConfig config;
+
+  private boolean eventsIndexed;
+  private final List<UserIdentityChangeEvent> emailAddedEvents = new ArrayList<>();
+  private final List<UserIdentityChangeEvent> emailChangedEvents = new ArrayList<>();
+  private final List<PushMessageOpenEvent> pushOpenEvents = new ArrayList<>();
+
+  private boolean identitiesIndexed;
+  private boolean hasEmail;
+  private String email;
+  private boolean hasCustomerId;
+  private String firstCustomerId;
+  private String lastCustomerId;
+  private String deviceId;
+
+  private String placeholderEmail;
+  private Map<String, Object> userDataFields;
+
+  EventProcessingContext(EventProcessingRequest request) {
+    this.request = request;
+    this.config = AccountConfig.forAccount(request.getAccount());
+  }
+
+  /**
+   * Identity change events that add an email without removing one, in event order.
+   */
+  List<UserIdentityChangeEvent> getEmailAddedEvents() {
+    indexEvents();
+    return emailAddedEvents;
+  }
+
+  /**
+   * Identity change events that replace one email with another, in event order.
+   */
+  List<UserIdentityChangeEvent> getEmailChangedEvents() {
+    indexEvents();
+    return emailChangedEvents;
+  }
+
+  List<PushMessageOpenEvent> getPushOpenEvents() {
+    indexEvents();
+    return pushOpenEvents;
+  }
+
+  boolean hasEmail() {
+    indexIdentities();
+    return hasEmail;
+  }
+
+  /**
+   * The value of the last email identity, which is the one sent to Iterable.
+   */
+  String getEmail() {
+    indexIdentities();
+    return email;
+  }
+
+  boolean hasCustomerId() {
+    indexIdentities();
+    return hasCustomerId;
+  }
+
+  String getFirstCustomerId() {
+    indexIdentities();
+    return firstCustomerId;
+  }
+
+  String getLastCustomerId() {
+    indexIdentities();
+    return lastCustomerId;
+  }
+
+  /**
+   * The device ID a placeholder email is built from: the IDFV or IDFA on iOS and tvOS, the
+   * GAID or Android ID on Android.
+   */
+  String getDeviceId() {
+    indexIdentities();
+    return deviceId;
+  }
+
+  String getPlaceholderEmail() {
+    return placeholderEmail;
+  }
+
+  void setPlaceholderEmail(String placeholderEmail) {
+    this.placeholderEmail = placeholderEmail;
+  }
+
+  /**
+   * Record an email identity added to the request after its identities were indexed.
+   */
+  void addEmail(String email) {
+    indexIdentities();
+    this.hasEmail = true;
+    this.email = email;
+  }
+
+  /**
+   * The converted user attributes. The map is shared by the user update and every purchase of
+   * the request, so it's read-only.
+   */
+  Map<String, Object> getUserDataFields() {
+    if (userDataFields == null && request.getUserAttributes() != null) {
+      userDataFields = Collections.unmodifiableMap(
+          IterableExtension.convertAttributes(request.getUserAttributes(), config.coerceStrings));
+    }
+    return userDataFields;
+  }
+
+  private void indexEvents() {
+    if (eventsIndexed) {
+      return;
+    }
+    eventsIndexed = true;
+    if (request.getEvents() == null) {
+      return;
+    }
+    for (Event event : request.getEvents()) {
+      if (event.getType() == Event.Type.USER_IDENTITY_CHANGE) {
+        indexIdentityChange((UserIdentityChangeEvent) event);
+      } else if (event.getType() == Event.Type.PUSH_MESSAGE_OPEN) {
+        pushOpenEvents.add((PushMessageOpenEvent) event);
+      }
+    }
+  }
+
+  private void indexIdentityChange(UserIdentityChangeEvent event) {
+    List<UserIdentity> added = event.getAdded();
+    List<UserIdentity> removed = event.getRemoved();
+    if (added == null || added.isEmpty() || !added.get(0).getType().equals(UserIdentity.Type.EMAIL)
+        || isEmpty(added.get(0).getValue())) {
+      return;
+    }
+    if (removed == null || removed.isEmpty()) {
+      emailAddedEvents.add(event);
+    } else if (!isEmpty(removed.get(0).getValue())) {
+      emailChangedEvents.add(event);
+    }
+  }
+
+  private void indexIdentities() {
+    if (identitiesIndexed) {
+      return;
+    }
+    identitiesIndexed = true;
+    if (request.getUserIdentities() != null) {
+      for (UserIdentity identity : request.getUserIdentities()) {
+        if (identity.getType().equals(UserIdentity.Type.EMAIL)) {
+          hasEmail = true;
+          email = identity.getValue();
+        } else if (identity.getType().equals(UserIdentity.Type.CUSTOMER)) {
+          if (!hasCustomerId) {
+            hasCustomerId = true;
+            firstCustomerId = identity.getValue();
+          }
+          lastCustomerId = identity.getValue();
+        }
+      }
+    }
+    RuntimeEnvironment environment = request.getRuntimeEnvironment();
+    if (environment instanceof IosRuntimeEnvironment) {
+      deviceId = findDeviceId(((IosRuntimeEnvironment) environment).getIdentities(),
+          DeviceIdentity.Type.IOS_VENDOR_ID, DeviceIdentity.Type.IOS_ADVERTISING_ID);
+    } else if (environment instanceof TVOSRuntimeEnvironment) {
+      deviceId = findDeviceId(((TVOSRuntimeEnvironment) environment).getIdentities(),
+          DeviceIdentity.Type.IOS_VENDOR_ID, DeviceIdentity.Type.IOS_ADVERTISING_ID);
+    } else if (environment instanceof AndroidRuntimeEnvironment) {
+      deviceId = findDeviceId(((AndroidRuntimeEnvironment) environment).getIdentities(),
+          DeviceIdentity.Type.GOOGLE_ADVERTISING_ID, DeviceIdentity.Type.ANDROID_ID);
+    }
+  }
+
+  /**
+   * @return the value of the first identity of the preferred type, or of the fallback type when
+   * that's missing or empty
+   */
+  private static String findDeviceId(List<DeviceIdentity> identities, DeviceIdentity.Type preferred,
+                                     DeviceIdentity.Type fallback) {
+    if (identities == null) {
+      return null;
+    }
+    DeviceIdentity preferredIdentity = null;
+    DeviceIdentity fallbackIdentity = null;
+    for (DeviceIdentity identity : identities) {
+      if (preferredIdentity == null && identity.getType().equals(preferred)) {
+        preferredIdentity = identity;
+      } else if (fallbackIdentity == null && identity.getType().equals(fallback)) {
+        fallbackIdentity = identity;
+      }
+    }
+    if (preferredIdentity != null && !isEmpty(preferredIdentity.getValue())) {
+      return preferredIdentity.getValue();
+    }
+    return fallbackIdentity != null ? fallbackIdentity.getValue() : null;
+  }
+
+  private static boolean isEmpty(String value) {
+    return value == null || value.isEmpty();
+  }
+}
@@ -0,0 +1,38 @@
+package com.mparticle.ext.iterable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A CheckpointStore that keeps the most recently used keys in memory. It only helps when a
+ * redelivered message lands on the same warm Lambda container, which is the common case for
+ * messages retried shortly after a throttled call.
+ */
+public class InMemoryCheckpointStore implements CheckpointStore {
+
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+  private final Map<String, Boolean> completedKeys;
+
+  public InMemoryCheckpointStore() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  public InMemoryCheckpointStore(int maxEntries) {
+    this.completedKeys = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public synchronized boolean isCompleted(String key) {
+    return completedKeys.get(key) != null;
+  }
+
+  @Override
+  public synchronized void markCompleted(String key) {
+    completedKeys.put(key, Boolean.TRUE);
+  }
+}
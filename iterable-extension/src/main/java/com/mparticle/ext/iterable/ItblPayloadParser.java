@@ -0,0 +1,96 @@
+package com.mparticle.ext.iterable;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Reads the Iterable fields of a push notification payload. Only the "itbl" object is looked at
+ * and only campaignId, templateId and messageId are read, using Jackson's streaming parser so no
+ * intermediate maps are built.
+ *
+ * iOS payloads carry "itbl" as a JSON object, while Android payloads carry it as a string that
+ * contains the JSON object. See the tests for examples.
+ */
+public class ItblPayloadParser {
+
+  private static final JsonFactory jsonFactory = new ObjectMapper().getFactory();
+
+  private ItblPayloadParser() {
+  }
+
+  /**
+   * @param payload the push payload of a PushMessageOpenEvent or PushMessageReceiptEvent
+   * @return the Iterable fields, or null if the payload has no "itbl" object
+   */
+  public static ItblPayload parse(String payload) throws IOException {
+    try (JsonParser parser = jsonFactory.createParser(payload)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (!"itbl".equals(fieldName)) {
+          parser.skipChildren();
+          continue;
+        }
+        if (value == JsonToken.START_OBJECT) {
+          return readItbl(parser);
+        }
+        if (value == JsonToken.VALUE_STRING) {
+          try (JsonParser nestedParser = jsonFactory.createParser(parser.getText())) {
+            return nestedParser.nextToken() == JsonToken.START_OBJECT ? readItbl(nestedParser) : null;
+          }
+        }
+        return null;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Read the fields of the object the parser is positioned at, leaving it at the object's end.
+   */
+  private static ItblPayload readItbl(JsonParser parser) throws IOException {
+    ItblPayload itbl = new ItblPayload();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String fieldName = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      switch (fieldName) {
+        case "campaignId":
+          itbl.campaignId = readInt(parser, value);
+          break;
+        case "templateId":
+          itbl.templateId = readInt(parser, value);
+          break;
+        case "messageId":
+          itbl.messageId = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return itbl;
+  }
+
+  /**
+   * Matches convertItblPayloadFieldToInt: anything but a JSON integer that fits in an int is 0.
+   */
+  private static int readInt(JsonParser parser, JsonToken value) throws IOException {
+    if (value == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() == JsonParser.NumberType.INT) {
+      return parser.getIntValue();
+    }
+    parser.skipChildren();
+    return 0;
+  }
+
+  public static class ItblPayload {
+    public int campaignId = 0;
+    public int templateId = 0;
+    public String messageId;
+  }
+}
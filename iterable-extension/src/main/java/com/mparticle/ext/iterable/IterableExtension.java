@@ -1,7 +1,6 @@
 package com.mparticle.ext.iterable;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mparticle.iterable.*;
 import com.mparticle.sdk.MessageProcessor;
 import com.mparticle.sdk.model.audienceprocessing.Audience;
@@ -15,6 +14,10 @@ import retrofit2.Response;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class IterableExtension extends MessageProcessor {
@@ -32,11 +35,68 @@ public class IterableExtension extends MessageProcessor {
     public static final String MPARTICLE_RESERVED_PHONE_ATTR = "$Mobile";
     public static final String ITERABLE_RESERVED_PHONE_ATTR = "phoneNumber";
     public static final Set<Integer> RETRIABLE_HTTP_STATUS_SET = new HashSet<>(Arrays.asList(429, 502, 504));
-    IterableService iterableService = IterableService.newInstance();
+    public static final int MAX_CONCURRENT_REQUESTS = 8;
+    public static final int DEFAULT_LIST_PAGE_SIZE = 1000;
+    private static final ExecutorService requestExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS, runnable -> {
+        Thread thread = new Thread(runnable, "iterable-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+    IterableService iterableService;
     IterableExtensionLogger logger;
+    /**
+     * When enabled, per-event track, trackPurchase and trackPushOpen calls within an
+     * EventProcessingRequest are sent concurrently once the user has been updated.
+     */
+    boolean concurrentRequestsEnabled = false;
+    /**
+     * When enabled, custom events are sent through events/trackBulk. Events are gathered per
+     * EventProcessingRequest unless a triggerTrackBuffer is set, in which case they're gathered
+     * across every request that uses it and sent when the owner calls flushTrackBulk.
+     */
+    boolean bulkTrackEnabled = false;
+    TrackBulkBuffer triggerTrackBuffer;
+    /**
+     * When set along with a triggerTrackBuffer, user updates are gathered here instead of being
+     * sent to users/update, and are coalesced per user when the owner calls flushBulkUserUpdates.
+     * The owner has to flush this buffer before the track buffer, so users exist before their
+     * events are tracked.
+     */
+    BulkUserUpdateBuffer triggerUserUpdateBuffer;
+    /**
+     * The most users sent in a single list subscribe or unsubscribe request, and how many of
+     * those requests may be in flight at once for an AudienceMembershipChangeRequest.
+     */
+    int listPageSize = DEFAULT_LIST_PAGE_SIZE;
+    int listPageConcurrency = 1;
+    /**
+     * When enabled, every Iterable call goes through the CircuitBreaker for its endpoint and
+     * fails fast with a RetriableError while that breaker is open.
+     */
+    boolean circuitBreakerEnabled = false;
+    /**
+     * When set, calls made while processing an EventProcessingRequest are recorded here once
+     * Iterable has handled them, keyed by the batch ID and the event ID. A redelivered batch then
+     * skips the calls that already went through.
+     */
+    CheckpointStore checkpointStore;
+    /**
+     * When set, users/update calls are skipped if Iterable already accepted the same dataFields
+     * for the user within the cache's TTL.
+     */
+    UserProfileCache userProfileCache;
+    private List<PendingRequest> pendingRequests;
+    private UUID activeBatchId;
+    private TrackBulkBuffer activeTrackBuffer;
+    private EventProcessingContext activeContext;
 
     public IterableExtension(IterableExtensionLogger logger) {
+        this(logger, IterableServiceHolder.getInstance());
+    }
+
+    public IterableExtension(IterableExtensionLogger logger, IterableService iterableService) {
         this.logger = logger;
+        this.iterableService = iterableService;
     }
 
     @Override
@@ -52,10 +112,70 @@ public class IterableExtension extends MessageProcessor {
                 (a, b) -> a.getTimestamp() > b.getTimestamp() ? 1 : a.getTimestamp() == b.getTimestamp() ? 0 : -1
 
         );
-        insertPlaceholderEmail(request);
+        activeContext = new EventProcessingContext(request);
+        recordBatchMetrics(request);
+        activeBatchId = checkpointStore != null ? request.getId() : null;
+        try {
+            insertPlaceholderEmail(request);
+            return processEvents(request);
+        } finally {
+            activeBatchId = null;
+            activeContext = null;
+        }
+    }
+
+    private EventProcessingResponse processEvents(EventProcessingRequest request) throws IOException {
+        // Email and user updates must complete before any events are tracked for the user.
         updateUser(request);
-        processPushOpens(request);
-        return super.processEventProcessingRequest(request);
+        if (!concurrentRequestsEnabled && !bulkTrackEnabled) {
+            processPushOpens(request);
+            return super.processEventProcessingRequest(request);
+        }
+
+        List<PendingRequest> pending = concurrentRequestsEnabled ? new ArrayList<>() : null;
+        TrackBulkBuffer requestTrackBuffer = bulkTrackEnabled && triggerTrackBuffer == null ? new TrackBulkBuffer() : null;
+        pendingRequests = pending;
+        activeTrackBuffer = requestTrackBuffer != null ? requestTrackBuffer : triggerTrackBuffer;
+        EventProcessingResponse response;
+        try {
+            processPushOpens(request);
+            response = super.processEventProcessingRequest(request);
+        } catch (IOException | RuntimeException e) {
+            if (pending != null) {
+                // The calls already sent are still handled, so the ones Iterable accepted are
+                // checkpointed and not repeated when the batch is redelivered
+                try {
+                    completePendingRequests(pending);
+                } catch (IOException | RuntimeException ignored) {
+
+                }
+            }
+            throw e;
+        } finally {
+            pendingRequests = null;
+            activeTrackBuffer = null;
+        }
+        if (pending != null) {
+            completePendingRequests(pending);
+        }
+        if (requestTrackBuffer != null && !flushTrackBulk(requestTrackBuffer).isEmpty()) {
+            throw new RetriableError();
+        }
+        return response;
+    }
+
+    private void recordBatchMetrics(EventProcessingRequest request) {
+        IterableMetrics metrics = logger.getMetrics();
+        if (metrics == null) {
+            return;
+        }
+        List<String> eventTypes = new ArrayList<>(request.getEvents() == null ? 0 : request.getEvents().size());
+        if (request.getEvents() != null) {
+            for (Event event : request.getEvents()) {
+                eventTypes.add(event.getType().name());
+            }
+        }
+        metrics.recordBatch(eventTypes);
     }
 
     private void processPushOpens(EventProcessingRequest processingRequest) throws IOException {
@@ -65,12 +185,7 @@ public class IterableExtension extends MessageProcessor {
         }
 
         if (processingRequest.getEvents() != null) {
-            List<PushMessageOpenEvent> pushOpenEvents = processingRequest.getEvents().stream()
-                    .filter(e -> e.getType() == Event.Type.PUSH_MESSAGE_OPEN)
-                    .map(e -> (PushMessageOpenEvent) e)
-                    .collect(Collectors.toList());
-
-            for (PushMessageOpenEvent event : pushOpenEvents) {
+            for (PushMessageOpenEvent event : getContext(processingRequest).getPushOpenEvents()) {
                 TrackPushOpenRequest request = new TrackPushOpenRequest();
                 if (event.getPayload() != null && processingRequest.getUserIdentities() != null) {
                     addUserIdentitiesToRequest(request, processingRequest);
@@ -78,45 +193,37 @@ public class IterableExtension extends MessageProcessor {
                         logger.logMessage("Unable to process PushMessageOpenEvent - user has no email or customer id.");
                         return;
                     }
-                    ObjectMapper mapper = new ObjectMapper();
-                    Map<String, Object> payload = mapper.readValue(event.getPayload(), Map.class);
-                    if (payload.containsKey("itbl")) {
-                        //Android and iOS have differently encoded payload formats. See the tests for examples.
-                        Map<String, Object> iterableMap;
-                        if (processingRequest.getRuntimeEnvironment() instanceof AndroidRuntimeEnvironment) {
-                            iterableMap = mapper.readValue((String) payload.get("itbl"), Map.class);
-                        } else {
-                            iterableMap = (Map) payload.get("itbl");
-                        }
-                        request.campaignId = convertItblPayloadFieldToInt(iterableMap.get("campaignId"));
-                        request.templateId = convertItblPayloadFieldToInt(iterableMap.get("templateId"));
-                        request.messageId = (String) iterableMap.get("messageId");
+                    ItblPayloadParser.ItblPayload itbl = ItblPayloadParser.parse(event.getPayload());
+                    if (itbl != null) {
+                        request.campaignId = itbl.campaignId;
+                        request.templateId = itbl.templateId;
+                        request.messageId = itbl.messageId;
                         if (request.campaignId == 0 || request.templateId == 0) {
                             // Proof sends don't have a campaignId
                             return;
                         }
                         request.createdAt = (int) (event.getTimestamp() / 1000.0);
                         Call<IterableApiResponse> preparedCall = iterableService.trackPushOpen(getApiKey(processingRequest), request);
-                        Response<IterableApiResponse> response = makeIterableRequest(preparedCall, event.getId());
-                        handleIterableResponse(preparedCall, response, event.getId());
+                        sendEventRequest(preparedCall, event.getId());
                     }
                 }
             }
         }
     }
 
-    private static String getApiKey(Event event) {
-        Account account = event.getRequest().getAccount();
-        return account.getStringSetting(SETTING_API_KEY, true, null);
+    private String getApiKey(Event event) {
+        return getApiKey(event.getRequest());
     }
 
-    private static String getApiKey(EventProcessingRequest event) {
-        Account account = event.getAccount();
-        return account.getStringSetting(SETTING_API_KEY, true, null);
+    private String getApiKey(EventProcessingRequest event) {
+        return getApiKey(getContext(event).config, event.getAccount());
     }
 
-    private static String getApiKey(AudienceMembershipChangeRequest event) {
-        Account account = event.getAccount();
+    private static String getApiKey(AccountConfig config, Account account) {
+        if (!isEmpty(config.apiKey)) {
+            return config.apiKey;
+        }
+        // Let the SDK report the missing setting
         return account.getStringSetting(SETTING_API_KEY, true, null);
     }
 
@@ -127,10 +234,8 @@ public class IterableExtension extends MessageProcessor {
      * @throws IOException
      */
     private void insertPlaceholderEmail(EventProcessingRequest request) throws IOException {
-        long count = request.getUserIdentities() == null ? 0 : request.getUserIdentities().stream()
-                .filter(t -> t.getType().equals(UserIdentity.Type.EMAIL))
-                .count();
-        if (count > 0) {
+        EventProcessingContext context = getContext(request);
+        if (context.hasEmail()) {
             return;
         }
         String placeholderEmail = getPlaceholderEmail(request);
@@ -138,6 +243,7 @@ public class IterableExtension extends MessageProcessor {
             request.setUserIdentities(new ArrayList<>());
         }
         request.getUserIdentities().add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, placeholderEmail));
+        context.addEmail(placeholderEmail);
     }
 
     @Override
@@ -156,14 +262,14 @@ public class IterableExtension extends MessageProcessor {
             Boolean sandboxed = ((IosRuntimeEnvironment) event.getRequest().getRuntimeEnvironment()).getIsSandboxed();
             if (sandboxed != null && sandboxed) {
                 request.device.platform = Device.PLATFORM_APNS_SANDBOX;
-                request.device.applicationName = event.getRequest().getAccount().getAccountSettings().get(SETTING_APNS_SANDBOX_KEY);
+                request.device.applicationName = getContext(event.getRequest()).config.apnsSandboxKey;
             } else {
                 request.device.platform = Device.PLATFORM_APNS;
-                request.device.applicationName = event.getRequest().getAccount().getAccountSettings().get(SETTING_APNS_KEY);
+                request.device.applicationName = getContext(event.getRequest()).config.apnsKey;
             }
         } else if (event.getRequest().getRuntimeEnvironment().getType().equals(RuntimeEnvironment.Type.ANDROID)) {
             request.device.platform = Device.PLATFORM_GCM;
-            request.device.applicationName = event.getRequest().getAccount().getAccountSettings().get(SETTING_GCM_NAME_KEY);
+            request.device.applicationName = getContext(event.getRequest()).config.gcmName;
         } else {
             logger.logMessage("Cannot process push subscription event for unknown RuntimeEnvironment type.");
             return;
@@ -190,45 +296,33 @@ public class IterableExtension extends MessageProcessor {
     void updateUser(EventProcessingRequest request) throws IOException {
         if (request.getEvents() != null) {
 
-            List<UserIdentityChangeEvent> emailChangeEvents = request.getEvents().stream()
-                    .filter(e -> e.getType() == Event.Type.USER_IDENTITY_CHANGE)
-                    .map(e -> (UserIdentityChangeEvent) e)
-                    .filter(e -> e.getAdded() != null && e.getRemoved() != null)
-                    .filter(e -> e.getAdded().size() > 0 && e.getRemoved().size() > 0)
-                    .filter(e -> e.getAdded().get(0).getType().equals(UserIdentity.Type.EMAIL))
-                    .filter(e -> !isEmpty(e.getAdded().get(0).getValue()) && !isEmpty(e.getRemoved().get(0).getValue()))
-                    .collect(Collectors.toList());
-
-            List<UserIdentityChangeEvent> emailAddedEvents = request.getEvents().stream()
-                    .filter(e -> e.getType() == Event.Type.USER_IDENTITY_CHANGE)
-                    .map(e -> (UserIdentityChangeEvent) e)
-                    .filter(e -> e.getAdded() != null && e.getAdded().size() > 0)
-                    .filter(e -> e.getRemoved() == null || e.getRemoved().size() == 0)
-                    .filter(e -> e.getAdded().get(0).getType().equals(UserIdentity.Type.EMAIL))
-                    .filter(e -> !isEmpty(e.getAdded().get(0).getValue()))
-                    .collect(Collectors.toList());
+            EventProcessingContext context = getContext(request);
+            List<UserIdentityChangeEvent> emailChangeEvents = context.getEmailChangedEvents();
+            List<UserIdentityChangeEvent> emailAddedEvents = context.getEmailAddedEvents();
 
             String placeholderEmail = getPlaceholderEmail(request);
             //convert from placeholder to email now that we have one
             for (UserIdentityChangeEvent changeEvent : emailAddedEvents) {
                 UpdateEmailRequest updateEmailRequest = new UpdateEmailRequest();
                 updateEmailRequest.currentEmail = placeholderEmail;
-                //this is safe due to the filters above
+                //this is safe since the context only indexes events that add an email
                 updateEmailRequest.newEmail = changeEvent.getAdded().get(0).getValue();
                 Call<IterableApiResponse> preparedCall = iterableService.updateEmail(getApiKey(request), updateEmailRequest);
-                Response<IterableApiResponse> response = makeIterableRequest(preparedCall, changeEvent.getId());
-                handleIterableResponse(preparedCall, response, changeEvent.getId());
+                if (sendCheckpointedRequest(preparedCall, changeEvent.getId())) {
+                    renameBufferedUser(getApiKey(request), updateEmailRequest);
+                }
             }
 
             //convert from old to new email
             for (UserIdentityChangeEvent changeEvent : emailChangeEvents) {
                 UpdateEmailRequest updateEmailRequest = new UpdateEmailRequest();
-                //these are safe due to the filters above
+                //these are safe since the context only indexes events that replace an email
                 updateEmailRequest.currentEmail = changeEvent.getRemoved().get(0).getValue();
                 updateEmailRequest.newEmail = changeEvent.getAdded().get(0).getValue();
                 Call<IterableApiResponse> preparedCall = iterableService.updateEmail(getApiKey(request), updateEmailRequest);
-                Response<IterableApiResponse> response = makeIterableRequest(preparedCall, changeEvent.getId());
-                handleIterableResponse(preparedCall, response, changeEvent.getId());
+                if (sendCheckpointedRequest(preparedCall, changeEvent.getId())) {
+                    renameBufferedUser(getApiKey(request), updateEmailRequest);
+                }
             }
         }
 
@@ -236,54 +330,163 @@ public class IterableExtension extends MessageProcessor {
         if (request.getUserIdentities() != null) {
             addUserIdentitiesToRequest(userUpdateRequest, request);
             if (!isEmpty(userUpdateRequest.email) || !isEmpty(userUpdateRequest.userId)) {
-                userUpdateRequest.dataFields = convertAttributes(request.getUserAttributes(), shouldCoerceStrings(request));
-                Call<IterableApiResponse> preparedCall = iterableService.userUpdate(getApiKey(request), userUpdateRequest);
-                Response<IterableApiResponse> response = makeIterableRequest(preparedCall, request.getId());
-                handleIterableResponse(preparedCall, response, request.getId());
+                userUpdateRequest.dataFields = getContext(request).getUserDataFields();
+                String apiKey = getApiKey(request);
+                String profileKey = null;
+                long profileHash = 0;
+                if (userProfileCache != null) {
+                    profileKey = UserProfileCache.getKey(apiKey, userUpdateRequest);
+                    profileHash = UserProfileCache.hash(userUpdateRequest.dataFields);
+                    if (userProfileCache.isUnchanged(profileKey, profileHash, System.currentTimeMillis())) {
+                        logger.recordUserProfileCacheHit();
+                        return;
+                    }
+                    logger.recordUserProfileCacheMiss();
+                }
+                if (canDeferUserUpdate(request)) {
+                    triggerUserUpdateBuffer.add(apiKey, userUpdateRequest, request.getId(), request.getTimestamp());
+                    if (profileKey != null) {
+                        // Until the buffer is flushed, what was last sent isn't what the user will
+                        // have, so a later record going back to it mustn't be skipped
+                        userProfileCache.invalidate(profileKey);
+                    }
+                    return;
+                }
+                if (sendUserUpdate(apiKey, userUpdateRequest, request) && profileKey != null) {
+                    userProfileCache.recordSent(profileKey, profileHash, System.currentTimeMillis());
+                }
             }
         }
     }
 
-    private Map<String, Object> convertAttributes(Map<String, String> attributes, boolean coerceStringsToScalars) {
-        if (attributes == null) {
-            return null;
+    /**
+     * Send a user update through users/update now. Updates earlier records of the trigger buffered
+     * for the same user are merged into it, since sending them at the end of the trigger would
+     * overwrite newer fields with older ones.
+     *
+     * @return true if Iterable accepted the update, now or when the batch was delivered before
+     */
+    private boolean sendUserUpdate(String apiKey, UserUpdateRequest userUpdateRequest, EventProcessingRequest request) throws IOException {
+        List<BulkUserUpdateBuffer.Contribution> pending = Collections.emptyList();
+        UserUpdateRequest sentRequest = userUpdateRequest;
+        if (triggerUserUpdateBuffer != null && !isCheckpointed(getCheckpointKey(request.getId()))) {
+            pending = triggerUserUpdateBuffer.removeUser(apiKey, userUpdateRequest);
+            if (!pending.isEmpty()) {
+                List<BulkUserUpdateBuffer.Contribution> contributions = new ArrayList<>(pending);
+                contributions.add(new BulkUserUpdateBuffer.Contribution(userUpdateRequest, request.getId(), null, request.getTimestamp()));
+                sentRequest = BulkUserUpdateBuffer.merge(contributions).request;
+            }
         }
-        Map<String, String> attributesWithReserved = convertReservedAttributes(attributes);
-        
-        if (coerceStringsToScalars) {
-            return attemptTypeConversion(attributesWithReserved);
-        } else {
-            Map<String, Object> mapObj = new HashMap<String, Object>();
-            mapObj.putAll(attributesWithReserved);
+        Call<IterableApiResponse> preparedCall = iterableService.userUpdate(apiKey, sentRequest);
+        try {
+            return sendCheckpointedRequest(preparedCall, request.getId());
+        } catch (IOException | RuntimeException e) {
+            if (!pending.isEmpty()) {
+                // The records the pending updates came from won't be redelivered along with this one
+                triggerUserUpdateBuffer.restoreUser(apiKey, pending);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A user update can only wait for the end of the trigger when nothing else is sent for the
+     * request before then: custom events have to be gathered in the trigger's track buffer, and
+     * the request can't have any events that are sent right away.
+     */
+    private boolean canDeferUserUpdate(EventProcessingRequest request) {
+        if (triggerUserUpdateBuffer == null || triggerTrackBuffer == null || !bulkTrackEnabled) {
+            return false;
+        }
+        if (request.getEvents() != null) {
+            for (Event event : request.getEvents()) {
+                if (event instanceof CustomEvent) {
+                    if (generateSubscriptionRequest((CustomEvent) event) != null) {
+                        return false;
+                    }
+                } else if (!(event instanceof UserAttributeChangeEvent) && !(event instanceof UserIdentityChangeEvent)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
 
-            return mapObj;
+    /**
+     * Updates and events buffered for the old email have to follow the user once Iterable has
+     * renamed it.
+     */
+    private void renameBufferedUser(String apiKey, UpdateEmailRequest updateEmailRequest) {
+        if (triggerUserUpdateBuffer != null) {
+            triggerUserUpdateBuffer.renameEmail(apiKey, updateEmailRequest.currentEmail, updateEmailRequest.newEmail);
+        }
+        if (triggerTrackBuffer != null) {
+            triggerTrackBuffer.renameEmail(apiKey, updateEmailRequest.currentEmail, updateEmailRequest.newEmail);
         }
     }
 
-    private static Map<String, String> convertReservedAttributes(Map<String, String> attributes) {
-        Map<String, String> convertedAttrs = new HashMap<String, String>();
-        convertedAttrs.putAll(attributes);
-        if (convertedAttrs.containsKey(MPARTICLE_RESERVED_PHONE_ATTR)) {
-            String phoneNumber = convertedAttrs.get(MPARTICLE_RESERVED_PHONE_ATTR);
-            String formattedNumber = phoneNumber.replaceAll("[^0-9+]", "");
-            convertedAttrs.put(ITERABLE_RESERVED_PHONE_ATTR, formattedNumber);
-            convertedAttrs.remove(MPARTICLE_RESERVED_PHONE_ATTR);
+    /**
+     * Send everything gathered in the buffer through users/bulkUpdate.
+     *
+     * @param buffer the user updates to send, which is left empty
+     * @return the sources of every chunk that failed with a retriable error
+     */
+    Set<String> flushBulkUserUpdates(BulkUserUpdateBuffer buffer) {
+        Set<String> failedSources = new LinkedHashSet<>();
+        for (BulkUserUpdateBuffer.Chunk chunk : buffer.drainChunks()) {
+            BulkUserUpdateRequest bulkRequest = new BulkUserUpdateRequest();
+            bulkRequest.users = new ArrayList<>(chunk.users.size());
+            for (BulkUserUpdateBuffer.MergedUser user : chunk.users) {
+                bulkRequest.users.add(user.request);
+            }
+            UUID firstRequestId = chunk.users.get(0).requestIds.get(0);
+            Call<BulkUserUpdateResponse> preparedCall = iterableService.bulkUserUpdate(chunk.apiKey, bulkRequest);
+            try {
+                Response<BulkUserUpdateResponse> response = makeIterableRequest(preparedCall, firstRequestId);
+                handleIterableBulkUserUpdateResponse(preparedCall, response, chunk);
+            } catch (RetriableError e) {
+                failedSources.addAll(chunk.getSources());
+            } catch (IOException e) {
+                logger.logUnexpectedError(e);
+            }
         }
-        return convertedAttrs;
+        return failedSources;
     }
 
-    private static boolean shouldCoerceStrings(EventProcessingRequest request) {
-        String settingValue = request.getAccount().getAccountSettings().get(SETTING_COERCE_STRINGS_TO_SCALARS);
-        
-        if (settingValue == null) { 
-            return false;
+    void handleIterableBulkUserUpdateResponse(Call<BulkUserUpdateResponse> preparedCall, Response<BulkUserUpdateResponse> response, BulkUserUpdateBuffer.Chunk chunk) throws RetriableError {
+        BulkUserUpdateResponse body = checkBulkResponse(preparedCall, response, chunk.users.get(0).requestIds.get(0));
+        if (body == null) {
+            return;
+        }
+        Set<String> failedEmails = body.getFailedEmails();
+        Set<String> failedUserIds = body.getFailedUserIds();
+        String url = preparedCall.request().url().encodedPath();
+        for (BulkUserUpdateBuffer.MergedUser user : chunk.users) {
+            String reason = getBulkUserFailureReason(user.request, failedEmails, failedUserIds);
+            if (reason != null) {
+                for (UUID requestId : user.requestIds) {
+                    logger.logIterableBulkFailure(url, requestId, reason);
+                }
+            } else if (userProfileCache != null) {
+                userProfileCache.recordSent(UserProfileCache.getKey(chunk.apiKey, user.request),
+                        UserProfileCache.hash(user.latestDataFields), System.currentTimeMillis());
+            }
         }
-        return Boolean.parseBoolean(settingValue);
     }
 
-    private static boolean shouldUseMPID(Account account) {
-        String settingValue = account.getStringSetting(SETTING_USER_ID_FIELD,false, USER_ID_FIELD_CUSTOMER_ID);
-        return settingValue.equals(USER_ID_FIELD_MPID);
+    static Map<String, Object> convertAttributes(Map<String, String> attributes, boolean coerceStringsToScalars) {
+        return AttributeTransformer.toDataFields(attributes, coerceStringsToScalars);
+    }
+
+    /**
+     * The context of the request being processed is shared by all of its events. Other requests
+     * get a new context on every call since they may change in between.
+     */
+    private EventProcessingContext getContext(EventProcessingRequest request) {
+        if (activeContext != null && activeContext.request == request) {
+            return activeContext;
+        }
+        return new EventProcessingContext(request);
     }
 
     private static boolean isEmpty(CharSequence chars) {
@@ -309,19 +512,18 @@ public class IterableExtension extends MessageProcessor {
             purchaseRequest.createdAt = (int) (event.getTimestamp() / 1000.0);
             ApiUser apiUser = new ApiUser();
             addUserIdentitiesToRequest(apiUser, event.getRequest());
-            boolean shouldCoerceStrings = shouldCoerceStrings(event.getRequest());
-            apiUser.dataFields = convertAttributes(event.getRequest().getUserAttributes(), shouldCoerceStrings);
+            EventProcessingContext context = getContext(event.getRequest());
+            apiUser.dataFields = context.getUserDataFields();
             purchaseRequest.user = apiUser;
             purchaseRequest.total = event.getTotalAmount();
             if (event.getProducts() != null) {
                 purchaseRequest.items = event.getProducts().stream()
-                        .map(p -> convertToCommerceItem(p, shouldCoerceStrings))
+                        .map(p -> convertToCommerceItem(p, context.config.coerceStrings))
                         .collect(Collectors.toList());
             }
 
             Call<IterableApiResponse> preparedCall = iterableService.trackPurchase(getApiKey(event), purchaseRequest);
-            Response<IterableApiResponse> response = makeIterableRequest(preparedCall, event.getId());
-            handleIterableResponse(preparedCall, response, event.getId());
+            sendEventRequest(preparedCall, event.getId());
         }
     }
 
@@ -362,64 +564,18 @@ public class IterableExtension extends MessageProcessor {
      * Also see: https://support.iterable.com/hc/en-us/articles/208499956-Creating-user-profiles-without-an-email-address
      */
     String getPlaceholderEmail(EventProcessingRequest request) throws IOException {
+        EventProcessingContext context = getContext(request);
+        if (context.getPlaceholderEmail() != null) {
+            return context.getPlaceholderEmail();
+        }
         String id = null;
-        if (shouldUseMPID(request.getAccount())) {
+        if (context.config.useMPID) {
             id = request.getMpId();
         } else {
-            if (request.getRuntimeEnvironment() instanceof IosRuntimeEnvironment || request.getRuntimeEnvironment() instanceof TVOSRuntimeEnvironment ) {
-                List<DeviceIdentity> deviceIdentities = null;
-                if (request.getRuntimeEnvironment() instanceof IosRuntimeEnvironment) {
-                    deviceIdentities = ((IosRuntimeEnvironment) request.getRuntimeEnvironment()).getIdentities();
-                } else {
-                    deviceIdentities = ((TVOSRuntimeEnvironment) request.getRuntimeEnvironment()).getIdentities();
-                }
-                if (deviceIdentities != null) {
-                    DeviceIdentity deviceIdentity = deviceIdentities.stream().filter(t -> t.getType().equals(DeviceIdentity.Type.IOS_VENDOR_ID))
-                            .findFirst()
-                            .orElse(null);
-                    if (deviceIdentity != null) {
-                        id = deviceIdentity.getValue();
-                    }
-                    if (isEmpty(id)) {
-                        deviceIdentity = deviceIdentities.stream().filter(t -> t.getType().equals(DeviceIdentity.Type.IOS_ADVERTISING_ID))
-                                .findFirst()
-                                .orElse(null);
-                        if (deviceIdentity != null) {
-                            id = deviceIdentity.getValue();
-                        }
-                    }
-                }
-            } else if (request.getRuntimeEnvironment() instanceof AndroidRuntimeEnvironment) {
-                if (((AndroidRuntimeEnvironment)request.getRuntimeEnvironment()).getIdentities() != null) {
-                    DeviceIdentity deviceIdentity = ((AndroidRuntimeEnvironment)request.getRuntimeEnvironment()).getIdentities().stream().filter(t -> t.getType().equals(DeviceIdentity.Type.GOOGLE_ADVERTISING_ID))
-                            .findFirst()
-                            .orElse(null);
-                    if (deviceIdentity != null) {
-                        id = deviceIdentity.getValue();
-                    }
-                    if (isEmpty(id)) {
-                        deviceIdentity = ((AndroidRuntimeEnvironment) request.getRuntimeEnvironment()).getIdentities().stream().filter(t -> t.getType().equals(DeviceIdentity.Type.ANDROID_ID))
-                                .findFirst()
-                                .orElse(null);
-                        if (deviceIdentity != null) {
-                            id = deviceIdentity.getValue();
-                        }
-                    }
-                }
+            id = context.getDeviceId();
+            if (isEmpty(id) && context.hasCustomerId()) {
+                id = context.getFirstCustomerId();
             }
-
-            if (isEmpty(id)) {
-                if (request.getUserIdentities() != null) {
-                    UserIdentity customerId = request.getUserIdentities().stream()
-                            .filter(t -> t.getType().equals(UserIdentity.Type.CUSTOMER))
-                            .findFirst()
-                            .orElse(null);
-                    if (customerId != null) {
-                        id = customerId.getValue();
-                    }
-                }
-            }
-
             if (isEmpty(id)) {
                 id = request.getDeviceApplicationStamp();
             }
@@ -430,7 +586,8 @@ public class IterableExtension extends MessageProcessor {
             logger.logProcessingError("Unable to send user data to Iterable - no email and unable to construct placeholder.", request.getId());
             throw new ProcessingError();
         }
-        return id + PLACEHOLDER_EMAIL_DOMAIN;
+        context.setPlaceholderEmail(id + PLACEHOLDER_EMAIL_DOMAIN);
+        return context.getPlaceholderEmail();
     }
 
     private static List<Integer> convertToIntList(String csv){
@@ -542,46 +699,114 @@ public class IterableExtension extends MessageProcessor {
         request.dataFields = attemptTypeConversion(event.getAttributes());
         addUserIdentitiesToRequest(request, event.getRequest());
 
+        if (activeTrackBuffer != null) {
+            String checkpointKey = getCheckpointKey(event.getId());
+            if (!isCheckpointed(checkpointKey)) {
+                activeTrackBuffer.add(getApiKey(event), request, event.getId(), checkpointKey);
+            }
+            return;
+        }
         Call<IterableApiResponse> preparedCall = iterableService.track(getApiKey(event), request);
-        Response<IterableApiResponse> response = makeIterableRequest(preparedCall, event.getId());
-        handleIterableResponse(preparedCall, response, event.getId());
+        sendEventRequest(preparedCall, event.getId());
+    }
+
+    /**
+     * Send everything gathered in the buffer through events/trackBulk.
+     *
+     * @param buffer the events to send, which is left empty
+     * @return the sources of every chunk that failed with a retriable error
+     */
+    Set<String> flushTrackBulk(TrackBulkBuffer buffer) {
+        Set<String> failedSources = new LinkedHashSet<>();
+        for (TrackBulkBuffer.Chunk chunk : buffer.drainChunks()) {
+            TrackBulkRequest bulkRequest = new TrackBulkRequest();
+            bulkRequest.events = new ArrayList<>(chunk.entries.size());
+            for (TrackBulkBuffer.Entry entry : chunk.entries) {
+                bulkRequest.events.add(entry.request);
+            }
+            UUID firstEventId = chunk.entries.get(0).eventId;
+            Call<TrackBulkResponse> preparedCall = iterableService.trackBulk(chunk.apiKey, bulkRequest);
+            try {
+                Response<TrackBulkResponse> response = makeIterableRequest(preparedCall, firstEventId);
+                handleIterableBulkResponse(preparedCall, response, chunk);
+                for (TrackBulkBuffer.Entry entry : chunk.entries) {
+                    checkpoint(entry.checkpointKey);
+                }
+            } catch (RetriableError e) {
+                failedSources.addAll(chunk.getSources());
+            } catch (IOException e) {
+                logger.logUnexpectedError(e);
+            }
+        }
+        return failedSources;
+    }
+
+    void handleIterableBulkResponse(Call<TrackBulkResponse> preparedCall, Response<TrackBulkResponse> response, TrackBulkBuffer.Chunk chunk) throws RetriableError {
+        TrackBulkResponse body = checkBulkResponse(preparedCall, response, chunk.entries.get(0).eventId);
+        if (body == null) {
+            return;
+        }
+        // Bulk failures are reported by email, userId or event name; map them back to the events.
+        Set<String> failedEmails = body.getFailedEmails();
+        Set<String> failedUserIds = body.getFailedUserIds();
+        Set<String> disallowedEventNames = body.disallowedEventNames == null ?
+                Collections.emptySet() : new HashSet<>(body.disallowedEventNames);
+        String url = preparedCall.request().url().encodedPath();
+        for (TrackBulkBuffer.Entry entry : chunk.entries) {
+            TrackRequest request = entry.request;
+            String reason = getBulkUserFailureReason(request, failedEmails, failedUserIds);
+            if (reason == null && disallowedEventNames.contains(request.getEventName())) {
+                reason = "Disallowed event name";
+            }
+            if (reason != null) {
+                logger.logIterableBulkFailure(url, entry.eventId, reason);
+            }
+        }
+    }
+
+    /**
+     * Check the status of a bulk response, logging and throwing like handleIterableResponse.
+     *
+     * @return the response body if it reports individual failures, otherwise null
+     */
+    private <T extends BulkResponse> T checkBulkResponse(Call<T> preparedCall, Response<T> response, UUID id) throws RetriableError {
+        if (!response.isSuccessful()) {
+            if (RETRIABLE_HTTP_STATUS_SET.contains(response.code())) {
+                logger.logIterableApiError(preparedCall, response, id, true);
+                throw new RetriableError();
+            }
+            logger.logIterableApiError(preparedCall, response, id, false);
+            return null;
+        }
+        T body = response.body();
+        return body == null || body.failCount <= 0 ? null : body;
+    }
+
+    private static String getBulkUserFailureReason(UserRequest request, Set<String> failedEmails, Set<String> failedUserIds) {
+        if (request.email != null && failedEmails.contains(request.email)) {
+            return "Invalid or unknown email";
+        } else if (request.userId != null && failedUserIds.contains(request.userId)) {
+            return "Invalid or unknown userId";
+        }
+        return null;
     }
 
     /**
-     * Make a best-effort attempt to coerce the values of each map item to bool, double, int, and string types
+     * Make a best-effort attempt to coerce the values of each map item to bool, int, long, double, and string types
      *
      * mParticle's API only accepts string, whereas Iterable's API accept different types. By coercing these types,
      * users of the Iterable API are able to create campaigns, aggregate events, etc.
      *
      * @param attributes
      * @return
+     * @see ScalarClassifier#coerce(String)
      */
-    private Map<String, Object> attemptTypeConversion(Map<String, String> attributes) {
+    Map<String, Object> attemptTypeConversion(Map<String, String> attributes) {
         if (attributes == null) {
             return null;
         }
         Map<String, Object> converted = new HashMap<>(attributes.size());
-        attributes.forEach((key,value)-> {
-            if (isEmpty(value)) {
-                converted.put(key, value);
-            } else {
-                if (value.toLowerCase(Locale.US).equals("true") || value.toLowerCase(Locale.US).equals("false")) {
-                    converted.put(key, Boolean.parseBoolean(value));
-                } else {
-                    try {
-                        double doubleValue = Double.parseDouble(value);
-                        if ((doubleValue % 1) == 0) {
-                            converted.put(key, Integer.parseInt(value));
-                        } else {
-                            converted.put(key, doubleValue);
-                        }
-                    }catch (NumberFormatException nfe) {
-                        converted.put(key, value);
-                    }
-                }
-            }
-
-        });
+        attributes.forEach((key, value) -> converted.put(key, ScalarClassifier.coerce(value)));
         return converted;
     }
 
@@ -607,27 +832,18 @@ public class IterableExtension extends MessageProcessor {
                 logger.logMessage("Unable to process PushMessageReceiptEvent - user has no email or customer id.");
                 return;
             }
-            ObjectMapper mapper = new ObjectMapper();
-            Map<String, Object> payload = mapper.readValue(event.getPayload(), Map.class);
-            if (payload.containsKey("itbl")) {
-                //Android and iOS have differently encoded payload formats. See the tests for examples.
-                Map<String, Object> iterableMap;
-                if (event.getRequest().getRuntimeEnvironment() instanceof AndroidRuntimeEnvironment) {
-                    iterableMap = mapper.readValue((String) payload.get("itbl"), Map.class);
-                } else {
-                    iterableMap = (Map) payload.get("itbl");
-                }
-                request.campaignId = convertItblPayloadFieldToInt(iterableMap.get("campaignId"));
-                request.templateId = convertItblPayloadFieldToInt(iterableMap.get("templateId"));
-                request.messageId = (String) iterableMap.get("messageId");
+            ItblPayloadParser.ItblPayload itbl = ItblPayloadParser.parse(event.getPayload());
+            if (itbl != null) {
+                request.campaignId = itbl.campaignId;
+                request.templateId = itbl.templateId;
+                request.messageId = itbl.messageId;
                 if (request.campaignId == 0 || request.templateId == 0) {
                     // Proof sends don't have a campaignId
                     return;
                 }
                 request.createdAt = (int) (event.getTimestamp() / 1000.0);
                 Call<IterableApiResponse> preparedCall = iterableService.trackPushOpen(getApiKey(event), request);
-                Response<IterableApiResponse> response = makeIterableRequest(preparedCall, event.getId());
-                handleIterableResponse(preparedCall, response, event.getId());
+                sendEventRequest(preparedCall, event.getId());
             }
         }
     }
@@ -645,6 +861,8 @@ public class IterableExtension extends MessageProcessor {
      *
      * Each subscribe and unsubscribe request may contain multiple users if there are multiple
      * users being added or removed from the same list. No dataFields are sent with the users.
+     * Requests are split into pages of at most listPageSize users. A page is sent as soon as it
+     * fills up, with up to listPageConcurrency pages in flight at once.
      *
      * mParticle Audience Processing: https://docs.mparticle.com/developers/partners/firehose/#audience-processing
      * Iterable subscribe: https://api.iterable.com/api/docs#lists_subscribe
@@ -655,84 +873,192 @@ public class IterableExtension extends MessageProcessor {
      */
     @Override
     public AudienceMembershipChangeResponse processAudienceMembershipChangeRequest(AudienceMembershipChangeRequest request) throws IOException {
-        HashMap<Integer, List<ApiUser>> additions = new HashMap<>();
-        HashMap<Integer, List<ApiUser>> removals = new HashMap<>();
-        for (UserProfile profile : request.getUserProfiles()) {
-            UserRequest userRequest = new UserRequest() {};
-            addUserIdentitiesToRequest(userRequest, profile, request.getAccount());
-            if (userRequest.email != null) {
-                if (profile.getAudiences() != null) {
-                    List<Audience> addedAudiences = profile.getAudiences().stream()
-                            .filter(audience -> audience.getAudienceAction() == Audience.AudienceAction.ADD)
-                            .collect(Collectors.toList());
-                    List<Audience> removedAudiences = profile.getAudiences().stream()
-                            .filter(audience -> audience.getAudienceAction() == Audience.AudienceAction.DELETE)
-                            .collect(Collectors.toList());
-                    for (Audience audience : addedAudiences) {
-                        Map<String, String> audienceSettings = audience.getAudienceSubscriptionSettings();
-                        int listId = Integer.parseInt(audienceSettings.get(SETTING_LIST_ID));
-                        ApiUser user = new ApiUser();
-                        user.email = userRequest.email;
-                        user.userId = userRequest.userId;
-                        if (!additions.containsKey(listId)) {
-                            additions.put(listId, new LinkedList<>());
-                        }
-                        additions.get(listId).add(user);
+        AccountConfig config = AccountConfig.forAccount(request.getAccount());
+        String apiKey = getApiKey(config, request.getAccount());
+        boolean useMPID = config.useMPID;
+        Map<Integer, List<ApiUser>> additions = new HashMap<>();
+        Map<Integer, List<ApiUser>> removals = new HashMap<>();
+        ListPageSender sender = new ListPageSender(request.getId());
+        try {
+            for (UserProfile profile : request.getUserProfiles()) {
+                UserRequest userRequest = new UserRequest() {};
+                addUserIdentitiesToRequest(userRequest, profile.getUserIdentities(), useMPID, profile.getMpId());
+                if (userRequest.email == null || profile.getAudiences() == null) {
+                    continue;
+                }
+                ApiUser user = new ApiUser();
+                user.email = userRequest.email;
+                user.userId = userRequest.userId;
+                for (Audience audience : profile.getAudiences()) {
+                    boolean isAddition = audience.getAudienceAction() == Audience.AudienceAction.ADD;
+                    if (!isAddition && audience.getAudienceAction() != Audience.AudienceAction.DELETE) {
+                        continue;
                     }
-                    for (Audience audience : removedAudiences) {
-                        Map<String, String> audienceSettings = audience.getAudienceSubscriptionSettings();
-                        int listId = Integer.parseInt(audienceSettings.get(SETTING_LIST_ID));
-                        ApiUser user = new ApiUser();
-                        user.email = userRequest.email;
-                        user.userId = userRequest.userId;
-                        if (!removals.containsKey(listId)) {
-                            removals.put(listId, new LinkedList<>());
-                        }
-                        removals.get(listId).add(user);
+                    Map<Integer, List<ApiUser>> pages = isAddition ? additions : removals;
+                    int listId = Integer.parseInt(audience.getAudienceSubscriptionSettings().get(SETTING_LIST_ID));
+                    List<ApiUser> page = pages.computeIfAbsent(listId, k -> new ArrayList<>());
+                    page.add(user);
+                    if (page.size() >= listPageSize) {
+                        pages.remove(listId);
+                        sender.send(prepareListCall(apiKey, listId, page, isAddition));
                     }
                 }
             }
+
+            for (Map.Entry<Integer, List<ApiUser>> entry : additions.entrySet()) {
+                sender.send(prepareListCall(apiKey, entry.getKey(), entry.getValue(), true));
+            }
+            for (Map.Entry<Integer, List<ApiUser>> entry : removals.entrySet()) {
+                sender.send(prepareListCall(apiKey, entry.getKey(), entry.getValue(), false));
+            }
+        } catch (RuntimeException e) {
+            sender.awaitQuietly();
+            throw e;
         }
+        sender.finish();
+        return new AudienceMembershipChangeResponse();
+    }
 
-        for (Map.Entry<Integer, List<ApiUser>> entry : additions.entrySet()) {
+    private Call<ListResponse> prepareListCall(String apiKey, int listId, List<ApiUser> subscribers, boolean isSubscribe) {
+        if (isSubscribe) {
             SubscribeRequest subscribeRequest = new SubscribeRequest();
-            subscribeRequest.listId = entry.getKey();
-            subscribeRequest.subscribers = entry.getValue();
-            Call<ListResponse> preparedCall = iterableService.listSubscribe(getApiKey(request), subscribeRequest);
-            Response<ListResponse> response = makeIterableRequest(preparedCall, request.getId());
-            handleIterableListResponse(preparedCall, response, request.getId());
+            subscribeRequest.listId = listId;
+            subscribeRequest.subscribers = subscribers;
+            return iterableService.listSubscribe(apiKey, subscribeRequest);
         }
-
-        for (Map.Entry<Integer, List<ApiUser>> entry : removals.entrySet()) {
-            UnsubscribeRequest unsubscribeRequest = new UnsubscribeRequest();
-            unsubscribeRequest.listId = entry.getKey();
-            unsubscribeRequest.subscribers = entry.getValue();
-            Call<ListResponse> preparedCall = iterableService.listUnsubscribe(getApiKey(request), unsubscribeRequest);
-            Response<ListResponse> response = makeIterableRequest(preparedCall, request.getId());
-            handleIterableListResponse(preparedCall, response, request.getId());
+        UnsubscribeRequest unsubscribeRequest = new UnsubscribeRequest();
+        unsubscribeRequest.listId = listId;
+        unsubscribeRequest.subscribers = subscribers;
+        return iterableService.listUnsubscribe(apiKey, unsubscribeRequest);
     }
-        return new AudienceMembershipChangeResponse();
+
+    /**
+     * Sends the list pages of one AudienceMembershipChangeRequest, keeping at most
+     * listPageConcurrency of them in flight. Fail counts are summed across pages and logged once
+     * when the request finishes.
+     */
+    private class ListPageSender {
+        private final UUID audienceRequestId;
+        private final Deque<PendingListPage> inFlight = new ArrayDeque<>();
+        private int failCount = 0;
+        private RetriableError retriableError;
+        private IOException otherError;
+
+        ListPageSender(UUID audienceRequestId) {
+            this.audienceRequestId = audienceRequestId;
+        }
+
+        void send(Call<ListResponse> preparedCall) {
+            if (retriableError != null || otherError != null) {
+                // The whole request is going to fail, so don't send the remaining pages.
+                return;
+            }
+            if (listPageConcurrency <= 1) {
+                try {
+                    handle(preparedCall, makeIterableRequest(preparedCall, audienceRequestId));
+                } catch (IOException e) {
+                    recordError(e);
+                }
+                return;
+            }
+            if (inFlight.size() >= listPageConcurrency) {
+                completeOldest();
+            }
+            Future<Response<ListResponse>> future = requestExecutor.submit(() -> makeIterableRequest(preparedCall, audienceRequestId));
+            inFlight.add(new PendingListPage(preparedCall, future));
+        }
+
+        /**
+         * Wait for every page still in flight, log the total fail count and rethrow a
+         * RetriableError, or failing that the first other error.
+         */
+        void finish() throws IOException {
+            while (!inFlight.isEmpty()) {
+                completeOldest();
+            }
+            if (failCount > 0) {
+                logger.logMessage(
+                        "List subscribe or unsubscribe request failed count: " + failCount);
+            }
+            if (retriableError != null) {
+                throw retriableError;
+            }
+            if (otherError != null) {
+                throw otherError;
+            }
+        }
+
+        void awaitQuietly() {
+            for (PendingListPage page : inFlight) {
+                try {
+                    awaitResponse(page.future);
+                } catch (Exception ignored) {
+
+                }
+            }
+            inFlight.clear();
+        }
+
+        private void completeOldest() {
+            PendingListPage page = inFlight.poll();
+            try {
+                handle(page.call, awaitResponse(page.future));
+            } catch (IOException e) {
+                recordError(e);
+            }
+        }
+
+        private void handle(Call<ListResponse> preparedCall, Response<ListResponse> response) throws RetriableError {
+            failCount += handleIterableListResponse(preparedCall, response, audienceRequestId);
+        }
+
+        private void recordError(IOException e) {
+            if (e instanceof RetriableError) {
+                if (retriableError == null) {
+                    retriableError = (RetriableError) e;
+                }
+            } else if (otherError == null) {
+                otherError = e;
+            }
+        }
     }
 
-    private void addUserIdentitiesToRequest(UserRequest request, EventProcessingRequest processingRequest) {
-        addUserIdentitiesToRequest(request, processingRequest.getUserIdentities(), processingRequest.getAccount(), processingRequest.getMpId());
+    private static class PendingListPage {
+        final Call<ListResponse> call;
+        final Future<Response<ListResponse>> future;
+
+        PendingListPage(Call<ListResponse> call, Future<Response<ListResponse>> future) {
+            this.call = call;
+            this.future = future;
+        }
     }
 
-    private void addUserIdentitiesToRequest(UserRequest request, UserProfile userProfile, Account account) {
-        addUserIdentitiesToRequest(request, userProfile.getUserIdentities(), account, userProfile.getMpId());
+    private void addUserIdentitiesToRequest(UserRequest request, EventProcessingRequest processingRequest) {
+        EventProcessingContext context = getContext(processingRequest);
+        if (context.hasEmail()) {
+            request.email = context.getEmail();
+        }
+        if (context.config.useMPID) {
+            request.userId = processingRequest.getMpId();
+            if (request.email == null) {
+                request.email = processingRequest.getMpId() + PLACEHOLDER_EMAIL_DOMAIN;
+            }
+        } else if (context.hasCustomerId()) {
+            request.userId = context.getLastCustomerId();
+        }
     }
 
-    private void addUserIdentitiesToRequest(UserRequest request, List<UserIdentity> identities, Account account, String mpid) {
+    private void addUserIdentitiesToRequest(UserRequest request, List<UserIdentity> identities, boolean useMPID, String mpid) {
         if (identities != null) {
             for (UserIdentity identity : identities) {
                 if (identity.getType().equals(UserIdentity.Type.EMAIL)) {
                     request.email = identity.getValue();
-                } else if (identity.getType().equals(UserIdentity.Type.CUSTOMER) && !shouldUseMPID(account)) {
+                } else if (identity.getType().equals(UserIdentity.Type.CUSTOMER) && !useMPID) {
                     request.userId = identity.getValue();
                 }
             }
         }
-        if (shouldUseMPID(account)) {
+        if (useMPID) {
             request.userId = mpid;
             if (request.email == null) {
                 request.email = mpid + PLACEHOLDER_EMAIL_DOMAIN;
@@ -757,7 +1083,10 @@ public class IterableExtension extends MessageProcessor {
         }
     }
 
-    void handleIterableListResponse(Call<ListResponse> preparedCall, Response<ListResponse> response, UUID audienceRequestId) throws RetriableError {
+    /**
+     * @return the number of users Iterable failed to subscribe or unsubscribe
+     */
+    int handleIterableListResponse(Call<ListResponse> preparedCall, Response<ListResponse> response, UUID audienceRequestId) throws RetriableError {
         if (!response.isSuccessful()) {
             if (RETRIABLE_HTTP_STATUS_SET.contains(response.code())) {
                 logger.logIterableApiError(preparedCall, response, audienceRequestId, true);
@@ -766,18 +1095,212 @@ public class IterableExtension extends MessageProcessor {
             logger.logIterableApiError(preparedCall, response, audienceRequestId, false);
         }
         int failCount = (response.body() == null) ? 0 : response.body().failCount;
-        if (failCount > 0) {
-            logger.logMessage(
-                    "List subscribe or unsubscribe request failed count: " + failCount);
+        return Math.max(failCount, 0);
+    }
+
+    /**
+     * Send a per-event request that has no ordering dependency on other events in the batch. When
+     * concurrent requests are enabled the call is queued on the shared executor and its response
+     * is handled once every event in the batch has been dispatched.
+     */
+    void sendEventRequest(Call<IterableApiResponse> preparedCall, UUID eventId) throws IOException {
+        if (pendingRequests == null) {
+            sendCheckpointedRequest(preparedCall, eventId);
+            return;
+        }
+        String checkpointKey = getCheckpointKey(eventId);
+        if (isCheckpointed(checkpointKey)) {
+            return;
+        }
+        Future<Response<IterableApiResponse>> future = requestExecutor.submit(() -> makeIterableRequest(preparedCall, eventId));
+        pendingRequests.add(new PendingRequest(preparedCall, eventId, checkpointKey, future));
+    }
+
+    /**
+     * Send a request and handle its response now, unless a previous delivery of the same batch
+     * already did.
+     *
+     * @return true if Iterable accepted the call, now or when the batch was delivered before
+     */
+    private boolean sendCheckpointedRequest(Call<IterableApiResponse> preparedCall, UUID id) throws IOException {
+        String checkpointKey = getCheckpointKey(id);
+        if (isCheckpointed(checkpointKey)) {
+            return true;
+        }
+        Response<IterableApiResponse> response = makeIterableRequest(preparedCall, id);
+        handleIterableResponse(preparedCall, response, id);
+        checkpoint(checkpointKey);
+        return response.isSuccessful() && response.body() != null && response.body().isSuccess();
+    }
+
+    /**
+     * @return the checkpoint key for a call made for the given event (or the batch itself) of the
+     * batch being processed, or null if checkpointing is off
+     */
+    private String getCheckpointKey(UUID id) {
+        if (activeBatchId == null || id == null) {
+            return null;
+        }
+        return activeBatchId + "/" + id;
+    }
+
+    private boolean isCheckpointed(String checkpointKey) {
+        return checkpointKey != null && checkpointStore.isCompleted(checkpointKey);
+    }
+
+    private void checkpoint(String checkpointKey) {
+        if (checkpointKey != null && checkpointStore != null) {
+            checkpointStore.markCompleted(checkpointKey);
+        }
+    }
+
+    /**
+     * Wait for every pending request and handle its response, checkpointing the ones that
+     * succeeded. Every response is handled (and any errors logged) before a RetriableError, or
+     * failing that the first other error, is rethrown.
+     */
+    private void completePendingRequests(List<PendingRequest> pending) throws IOException {
+        RetriableError retriableError = null;
+        Exception otherError = null;
+        for (PendingRequest request : pending) {
+            try {
+                Response<IterableApiResponse> response = awaitResponse(request.future);
+                handleIterableResponse(request.call, response, request.eventId);
+                checkpoint(request.checkpointKey);
+            } catch (RetriableError e) {
+                if (retriableError == null) {
+                    retriableError = e;
+                }
+            } catch (IOException | RuntimeException e) {
+                if (otherError == null) {
+                    otherError = e;
+                }
+            }
+        }
+        if (retriableError != null) {
+            throw retriableError;
+        }
+        if (otherError instanceof IOException) {
+            throw (IOException) otherError;
+        }
+        if (otherError != null) {
+            throw (RuntimeException) otherError;
+        }
+    }
+
+    private static <T> T awaitResponse(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RetriableError("Interrupted while waiting for an Iterable API response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static class PendingRequest {
+        final Call<IterableApiResponse> call;
+        final UUID eventId;
+        final String checkpointKey;
+        final Future<Response<IterableApiResponse>> future;
+
+        PendingRequest(Call<IterableApiResponse> call, UUID eventId, String checkpointKey, Future<Response<IterableApiResponse>> future) {
+            this.call = call;
+            this.eventId = eventId;
+            this.checkpointKey = checkpointKey;
+            this.future = future;
         }
     }
 
     <T> Response<T> makeIterableRequest(Call<T> call, UUID requestId) throws IOException {
+        if (!circuitBreakerEnabled) {
+            return executeIterableRequest(call, requestId);
+        }
+        String path = call.request().url().encodedPath();
+        CircuitBreaker circuitBreaker = CircuitBreaker.forPath(path);
+        if (!circuitBreaker.tryAcquire(System.currentTimeMillis())) {
+            logger.logCircuitBreakerRejection(path, requestId, circuitBreaker.getState());
+            if (logger.getMetrics() != null) {
+                logger.getMetrics().recordIterableRejection(path, "CircuitOpen");
+            }
+            throw new RetriableError();
+        }
+        Boolean isEndpointHealthy = null;
+        try {
+            Response<T> response = executeIterableRequest(call, requestId);
+            isEndpointHealthy = response.code() < 500;
+            return response;
+        } catch (RetriableError e) {
+            // Timeouts are reported as a RetriableError, while client-side rate limiting says nothing about the endpoint.
+            isEndpointHealthy = e.getCause() instanceof RateLimitedException ? null : false;
+            throw e;
+        } catch (IOException e) {
+            isEndpointHealthy = false;
+            throw e;
+        } finally {
+            CircuitBreaker.State newState = null;
+            if (isEndpointHealthy == null) {
+                circuitBreaker.release();
+            } else if (isEndpointHealthy) {
+                newState = circuitBreaker.recordSuccess();
+            } else {
+                newState = circuitBreaker.recordFailure(System.currentTimeMillis());
+            }
+            if (newState != null) {
+                logger.logCircuitBreakerStateChange(path, newState);
+            }
+        }
+    }
+
+    private <T> Response<T> executeIterableRequest(Call<T> call, UUID requestId) throws IOException {
+        IterableMetrics metrics = logger.getMetrics();
+        long startNanos = 0;
+        long serializedNanos = 0;
+        if (metrics != null) {
+            startNanos = System.nanoTime();
+            // Retrofit serializes the body when it builds the request, so build it before the call
+            // is executed to time serialization apart from the network round trip.
+            call.request();
+            serializedNanos = System.nanoTime();
+        }
         try {
-            return call.execute();
+            Response<T> response = call.execute();
+            if (metrics != null) {
+                metrics.recordIterableCall(getPath(call), String.valueOf(response.code()),
+                        serializedNanos - startNanos, System.nanoTime() - serializedNanos);
+            }
+            return response;
         } catch (java.net.SocketTimeoutException e) {
+            if (metrics != null) {
+                metrics.recordIterableCall(getPath(call), "Timeout",
+                        serializedNanos - startNanos, System.nanoTime() - serializedNanos);
+            }
             logger.logIterableApiTimeout(call.request().url().encodedPath(), requestId);
             throw new RetriableError();
+        } catch (RateLimitedException e) {
+            if (metrics != null) {
+                metrics.recordIterableRejection(getPath(call), "RateLimited");
+            }
+            logger.logIterableRateLimited(call.request().url().encodedPath(), requestId, e.getRetryAfterMillis());
+            throw new RetriableError(e);
+        } catch (IOException e) {
+            if (metrics != null) {
+                metrics.recordIterableCall(getPath(call), "IOException",
+                        serializedNanos - startNanos, System.nanoTime() - serializedNanos);
+            }
+            throw e;
         }
     }
-}
\ No newline at end of file
+
+    private static String getPath(Call<?> call) {
+        okhttp3.Request request = call.request();
+        return request != null ? request.url().encodedPath() : null;
+    }
+}
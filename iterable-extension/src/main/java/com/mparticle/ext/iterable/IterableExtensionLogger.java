@@ -10,12 +10,16 @@ import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 /**
  * A utility class for writing logs to the Lambda log stream. All static methods write a JSON object
  * to Standard Output where it can be queried in Cloudwatch. Every log message contains the
  * "awsRequestId" in order to connect all log statements from a given invocation. Logs containing
  * PII are sent to Blobby. 
+ *
+ * With a BlobbyShipper, Blobby payloads are sent in the background and log statements carry the
+ * payload's correlation ID in their "blobbyId" field instead of the ID returned by Blobby.
  */
 public class IterableExtensionLogger {
 
@@ -25,9 +29,14 @@ public class IterableExtensionLogger {
   public static final String UNEXPECTED_ERROR = "UnexpectedError";
   private static final Gson gson = new GsonBuilder().create();
   private BlobbyClient blobbyClient;
+  private BlobbyShipper blobbyShipper;
   private boolean hasBlobbyEnabled;
   private String awsRequestId;
   private String mparticleBatch;
+  private Supplier<String> mparticleBatchSupplier;
+  private int userProfileCacheHits;
+  private int userProfileCacheMisses;
+  private IterableMetrics metrics;
 
   public IterableExtensionLogger(String awsRequestId, BlobbyClient bc, boolean hasBlobbyEnabled) {
     this.awsRequestId = awsRequestId;
@@ -35,6 +44,12 @@ public class IterableExtensionLogger {
     this.hasBlobbyEnabled = hasBlobbyEnabled;
   }
 
+  public IterableExtensionLogger(String awsRequestId, BlobbyShipper blobbyShipper, boolean hasBlobbyEnabled) {
+    this.awsRequestId = awsRequestId;
+    this.blobbyShipper = blobbyShipper;
+    this.hasBlobbyEnabled = hasBlobbyEnabled;
+  }
+
   public void logIterableApiError(retrofit2.Call<?> preparedCall,
                                   Response<?> response, UUID mparticleEventId, Boolean isRetriable) {
     Map<String, String> blobbyLogMessage = new HashMap<>();
@@ -61,7 +76,7 @@ public class IterableExtensionLogger {
 
     blobbyLogMessage.put("request", requestBody);
     blobbyLogMessage.put("response", responseBody);
-    blobbyLogMessage.put("mParticleBatch", mparticleBatch);
+    blobbyLogMessage.put("mParticleBatch", getMparticleBatch());
     String blobbyId = logToBlobby(blobbyLogMessage);
 
     String errorType = isRetriable ? RETRIABLE_HTTP_ERROR : NON_RETRIABLE_HTTP_ERROR;
@@ -93,9 +108,100 @@ public class IterableExtensionLogger {
     System.out.println(messageJson);
   }
 
+  public void logIterableRateLimited(String url, UUID mparticleEventId, long retryAfterMillis) {
+    String eventIdString = mparticleEventId != null ? mparticleEventId.toString() : "Error";
+    Map<String, String> logMessage = new HashMap<>();
+    logMessage.put("errorType", RETRIABLE_HTTP_ERROR);
+    logMessage.put("awsRequestId", awsRequestId);
+    logMessage.put("mparticleEventId", eventIdString);
+    logMessage.put("message", "Request not sent because the client-side rate limit was reached");
+    logMessage.put("url", url);
+    logMessage.put("retryAfterMillis", String.valueOf(retryAfterMillis));
+    String messageJson = gson.toJson(logMessage);
+    System.out.println(messageJson);
+  }
+
+  public void logCircuitBreakerRejection(String url, UUID mparticleEventId, CircuitBreaker.State state) {
+    String eventIdString = mparticleEventId != null ? mparticleEventId.toString() : "Error";
+    Map<String, String> logMessage = new HashMap<>();
+    logMessage.put("errorType", RETRIABLE_HTTP_ERROR);
+    logMessage.put("awsRequestId", awsRequestId);
+    logMessage.put("mparticleEventId", eventIdString);
+    logMessage.put("message", "Request not sent because the circuit breaker for the endpoint is open");
+    logMessage.put("url", url);
+    logMessage.put("circuitBreakerState", state.name());
+    String messageJson = gson.toJson(logMessage);
+    System.out.println(messageJson);
+  }
+
+  public void logCircuitBreakerStateChange(String url, CircuitBreaker.State state) {
+    Map<String, String> logMessage = new HashMap<>();
+    logMessage.put("awsRequestId", awsRequestId);
+    logMessage.put("message", "Circuit breaker for an Iterable endpoint changed state");
+    logMessage.put("url", url);
+    logMessage.put("circuitBreakerState", state.name());
+    String messageJson = gson.toJson(logMessage);
+    System.out.println(messageJson);
+  }
+
+  public void logIterableBulkFailure(String url, UUID mparticleEventId, String reason) {
+    String eventIdString = mparticleEventId != null ? mparticleEventId.toString() : "Error";
+    Map<String, String> logMessage = new HashMap<>();
+    logMessage.put("errorType", NON_RETRIABLE_HTTP_ERROR);
+    logMessage.put("awsRequestId", awsRequestId);
+    logMessage.put("mparticleEventId", eventIdString);
+    logMessage.put("message", "Iterable rejected an item in a bulk request: " + reason);
+    logMessage.put("url", url);
+    String messageJson = gson.toJson(logMessage);
+    System.out.println(messageJson);
+  }
+
+  public void recordUserProfileCacheHit() {
+    userProfileCacheHits++;
+  }
+
+  public void recordUserProfileCacheMiss() {
+    userProfileCacheMisses++;
+  }
+
+  /**
+   * Log how many user updates were skipped or sent because of the UserProfileCache during the
+   * invocation.
+   */
+  public void logUserProfileCacheStats() {
+    Map<String, String> logMessage = new HashMap<>();
+    logMessage.put("awsRequestId", awsRequestId);
+    logMessage.put("message", "User profile cache statistics");
+    logMessage.put("userProfileCacheHits", String.valueOf(userProfileCacheHits));
+    logMessage.put("userProfileCacheMisses", String.valueOf(userProfileCacheMisses));
+    String messageJson = gson.toJson(logMessage);
+    System.out.println(messageJson);
+  }
+
+  /**
+   * @return the metrics of the invocation, or null if metrics are disabled
+   */
+  public IterableMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void setMetrics(IterableMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Write the metrics of the invocation to the log stream as one EMF document.
+   */
+  public void logMetrics(String functionName) {
+    if (metrics == null || metrics.isEmpty()) {
+      return;
+    }
+    System.out.println(metrics.toEmfDocument(System.currentTimeMillis(), functionName != null ? functionName : "local"));
+  }
+
   public void logProcessingError(String message, UUID mparticleEventId) {
     Map<String, String> blobbyLogMessage = new HashMap<>();
-    blobbyLogMessage.put("mParticleBatch", mparticleBatch);
+    blobbyLogMessage.put("mParticleBatch", getMparticleBatch());
     String blobbyId = logToBlobby(blobbyLogMessage);
 
     String eventIdString = mparticleEventId != null ? mparticleEventId.toString() : "Error";
@@ -111,7 +217,7 @@ public class IterableExtensionLogger {
 
   public void logUnexpectedError(Exception e) {
     Map<String, String> blobbyLogMessage = new HashMap<>();
-    blobbyLogMessage.put("mParticleBatch", mparticleBatch);
+    blobbyLogMessage.put("mParticleBatch", getMparticleBatch());
     String blobbyId = logToBlobby(blobbyLogMessage);
 
     Map<String, String> logMessage = new HashMap<>();
@@ -135,11 +241,37 @@ public class IterableExtensionLogger {
 
   public void setMparticleBatch(String mparticleBatch) {
     this.mparticleBatch = mparticleBatch;
+    this.mparticleBatchSupplier = null;
+  }
+
+  /**
+   * Set the batch logged with errors to one that's only built if an error is logged, e.g. from
+   * the raw bytes of a trigger.
+   */
+  public void setMparticleBatchSupplier(Supplier<String> mparticleBatchSupplier) {
+    this.mparticleBatch = null;
+    this.mparticleBatchSupplier = mparticleBatchSupplier;
+  }
+
+  /**
+   * The supplied batch is kept once it's built, so every error logged for it shares one copy.
+   */
+  private String getMparticleBatch() {
+    if (mparticleBatchSupplier != null) {
+      mparticleBatch = mparticleBatchSupplier.get();
+      mparticleBatchSupplier = null;
+    }
+    return mparticleBatch;
   }
 
   private String logToBlobby(Map<String, String> message) {
     String blobbyId;
-    if (hasBlobbyEnabled) {
+    if (hasBlobbyEnabled && blobbyShipper != null) {
+      blobbyId = blobbyShipper.submit(message);
+      if (blobbyId == null) {
+        blobbyId = "Not logged to Blobby because the queue was full";
+      }
+    } else if (hasBlobbyEnabled) {
       try {
         blobbyId = blobbyClient.log(gson.toJson(message));
       } catch (Exception e) {
@@ -2,49 +2,411 @@ package com.mparticle.ext.iterable;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mparticle.iterable.IterableService;
+import com.mparticle.iterable.TrackRequest;
 import com.mparticle.sdk.model.Message;
 import com.mparticle.sdk.model.MessageSerializer;
-import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
-public class IterableLambdaEndpoint implements RequestStreamHandler {
+public class IterableLambdaEndpoint implements RequestStreamHandler, AutoCloseable {
 
   static final MessageSerializer serializer = new MessageSerializer();
   static final ObjectMapper mapper = new ObjectMapper();
-  static final BlobbyClient blobbyClient = new BlobbyClient();
+  static final BlobbyClient sharedBlobbyClient = new BlobbyClient();
+  static final BlobbyShipper sharedBlobbyShipper = new BlobbyShipper(sharedBlobbyClient);
+  // Long enough for a Blobby request that's already in flight to complete or time out
+  static final long BLOBBY_FLUSH_TIMEOUT_MS = BlobbyClient.MAX_REQUEST_MILLIS + 1000;
+  // The S3 client is only built once a record with a stored payload arrives
+  static final PayloadStore sharedPayloadStore = S3PayloadStore.fromEnv();
+  // How much of a trigger that can't be parsed is logged
+  static final int MAX_LOGGED_TRIGGER_BYTES = 64 * 1024;
+  static final String PRIMING_TRIGGER_RESOURCE = "/priming/queueTrigger.json";
+  // Whether priming succeeded, or null until it has run
+  private static Boolean primed;
+  static final CheckpointStore sharedCheckpointStore =
+      Boolean.parseBoolean(System.getenv("CHECKPOINTS_ENABLED")) ? new InMemoryCheckpointStore() : null;
+  static final UserProfileCache sharedUserProfileCache =
+      Boolean.parseBoolean(System.getenv("USER_PROFILE_CACHE_ENABLED")) ? new UserProfileCache(
+          UserProfileCache.DEFAULT_MAX_ENTRIES,
+          getIntEnv("USER_PROFILE_CACHE_TTL_SECONDS", (int) (UserProfileCache.DEFAULT_TTL_MILLIS / 1000)) * 1000L) : null;
+  static final boolean METRICS_ENABLED =
+      Boolean.parseBoolean(System.getenv("METRICS_ENABLED"));
+  static final boolean CONCURRENT_REQUESTS_ENABLED =
+      Boolean.parseBoolean(System.getenv("CONCURRENT_REQUESTS_ENABLED"));
+  static final boolean BULK_TRACK_ENABLED =
+      Boolean.parseBoolean(System.getenv("BULK_TRACK_ENABLED"));
+  static final boolean BULK_TRACK_ACROSS_RECORDS =
+      Boolean.parseBoolean(System.getenv("BULK_TRACK_ACROSS_RECORDS"));
+  static final boolean BULK_USER_UPDATE_ENABLED =
+      Boolean.parseBoolean(System.getenv("BULK_USER_UPDATE_ENABLED"));
+  static final boolean CIRCUIT_BREAKER_ENABLED =
+      Boolean.parseBoolean(System.getenv("CIRCUIT_BREAKER_ENABLED"));
+  static final int LIST_PAGE_SIZE =
+      getIntEnv("LIST_PAGE_SIZE", IterableExtension.DEFAULT_LIST_PAGE_SIZE);
+  static final int LIST_PAGE_CONCURRENCY = Math.min(
+      getIntEnv("LIST_PAGE_CONCURRENCY", 1), IterableExtension.MAX_CONCURRENT_REQUESTS);
+  private final IterableService iterableService;
+  private final BlobbyShipper blobbyShipper;
 
+  /**
+   * Lambda constructs the handler during its init phase, so the shared clients are built and
+   * primed before the first invocation.
+   */
+  public IterableLambdaEndpoint() {
+    this(IterableServiceHolder.getInstance(), sharedBlobbyClient);
+    prime();
+  }
+
+  public IterableLambdaEndpoint(IterableService iterableService, BlobbyClient blobbyClient) {
+    this.iterableService = iterableService;
+    this.blobbyShipper = blobbyClient == sharedBlobbyClient ? sharedBlobbyShipper : new BlobbyShipper(blobbyClient);
+  }
+
+  /**
+   * Stop the Blobby shipper of an endpoint built with its own BlobbyClient, e.g. in a benchmark.
+   * The shipper of the shared BlobbyClient lives as long as the JVM.
+   */
+  @Override
+  public void close() {
+    if (blobbyShipper != sharedBlobbyShipper) {
+      blobbyShipper.close();
+    }
+  }
+
+  /**
+   * Process every record in the SQS trigger and report the records that should be retried.
+   * Records that fail with a RetriableError are listed in the batchItemFailures response and
+   * redelivered by SQS; all other records are deleted from the queue.
+   *
+   * Error payloads are shipped to Blobby in the background, and the handler waits for them
+   * before returning since Lambda freezes the container afterwards.
+   */
   @Override
   public void handleRequest(InputStream input, OutputStream output, Context context)
-      throws RetriableError {
-    IterableExtensionLogger logger = new IterableExtensionLogger(context.getAwsRequestId(), blobbyClient, true);
-    IterableExtension extension = new IterableExtension(logger);
+      throws IOException {
+    IterableExtensionLogger logger = new IterableExtensionLogger(context.getAwsRequestId(), blobbyShipper, true);
+    if (METRICS_ENABLED) {
+      logger.setMetrics(new IterableMetrics());
+    }
+    try {
+      processTrigger(input, output, logger);
+    } finally {
+      logger.logMetrics(context.getFunctionName());
+      if (!blobbyShipper.flush(BLOBBY_FLUSH_TIMEOUT_MS)) {
+        logger.logMessage("Timed out waiting for log payloads to be sent to Blobby");
+      }
+      long droppedCount = blobbyShipper.getAndResetDroppedCount();
+      if (droppedCount > 0) {
+        logger.logMessage("Dropped " + droppedCount + " log payloads because the Blobby queue was full");
+      }
+    }
+  }
+
+  private void processTrigger(InputStream input, OutputStream output, IterableExtensionLogger logger)
+      throws IOException {
+    IterableExtension extension = new IterableExtension(logger, iterableService);
+    extension.concurrentRequestsEnabled = CONCURRENT_REQUESTS_ENABLED;
+    extension.bulkTrackEnabled = BULK_TRACK_ENABLED;
+    extension.listPageSize = LIST_PAGE_SIZE;
+    extension.listPageConcurrency = LIST_PAGE_CONCURRENCY;
+    extension.circuitBreakerEnabled = CIRCUIT_BREAKER_ENABLED;
+    extension.checkpointStore = sharedCheckpointStore;
+    extension.userProfileCache = sharedUserProfileCache;
+    if (BULK_TRACK_ENABLED && BULK_TRACK_ACROSS_RECORDS) {
+      extension.triggerTrackBuffer = new TrackBulkBuffer();
+      // User updates can only be held until the end of the trigger if their events are too
+      if (BULK_USER_UPDATE_ENABLED) {
+        extension.triggerUserUpdateBuffer = new BulkUserUpdateBuffer();
+      }
+    }
+    QueueTriggerResponse triggerResponse = new QueueTriggerResponse();
+
+    // Records are parsed from the stream and processed one at a time, so only the current record
+    // is held. The start of the trigger is kept so a trigger that can't be parsed can be logged.
+    CapturingInputStream trigger = new CapturingInputStream(input, MAX_LOGGED_TRIGGER_BYTES);
+    try (JsonParser parser = openQueueTrigger(trigger)) {
+      QueueMessageBody record;
+      while ((record = nextQueueMessage(parser)) != null) {
+        processRecord(record, extension, triggerResponse, logger);
+      }
+    } catch (IOException | RuntimeException e) {
+      // Records after the error can't be read, so the invocation fails and SQS redelivers the
+      // whole trigger. With checkpoints enabled, records that were already processed skip the
+      // calls they made; buffered calls haven't been sent yet and are made on redelivery.
+      logger.setMparticleBatchSupplier(trigger::getCaptured);
+      logger.logMessage("Invocation terminated by an " + logger.UNEXPECTED_ERROR);
+      logger.logUnexpectedError(e);
+      throw e;
+    }
+
+    logger.setMparticleBatch(null);
+    for (String messageId : flushTriggerBuffers(extension)) {
+      logger.logMessage("Message " + messageId + " terminated by a " + logger.RETRIABLE_HTTP_ERROR);
+      triggerResponse.addFailure(messageId);
+    }
+    if (extension.userProfileCache != null) {
+      logger.logUserProfileCacheStats();
+    }
+    mapper.writeValue(output, triggerResponse);
+  }
+
+  /**
+   * Send what the extension gathered across the records of the trigger. User updates go first so
+   * users exist with their latest attributes before events are tracked.
+   *
+   * @return the IDs of the messages that should be redelivered
+   */
+  static Set<String> flushTriggerBuffers(IterableExtension extension) {
+    Set<String> failedMessageIds = new LinkedHashSet<>();
+    if (extension.triggerUserUpdateBuffer != null) {
+      failedMessageIds.addAll(extension.flushBulkUserUpdates(extension.triggerUserUpdateBuffer));
+    }
+    if (extension.triggerTrackBuffer != null) {
+      // Messages whose user update failed are redelivered, so their events are tracked then, after
+      // the user update, rather than now and again on redelivery.
+      for (String messageId : failedMessageIds) {
+        extension.triggerTrackBuffer.discardSource(messageId);
+      }
+      failedMessageIds.addAll(extension.flushTrackBulk(extension.triggerTrackBuffer));
+    }
+    return failedMessageIds;
+  }
 
+  private void processRecord(QueueMessageBody record, IterableExtension extension,
+                             QueueTriggerResponse triggerResponse, IterableExtensionLogger logger) {
+    // Errors are logged with whatever the record's body is by then, raw or decoded
+    logger.setMparticleBatchSupplier(() -> record.body);
+    if (extension.triggerTrackBuffer != null) {
+      extension.triggerTrackBuffer.setCurrentSource(record.messageId);
+    }
+    if (extension.triggerUserUpdateBuffer != null) {
+      extension.triggerUserUpdateBuffer.setCurrentSource(record.messageId);
+    }
     try {
-      String inputString = IOUtils.toString(input, "UTF-8");
-      logger.setMparticleBatch(inputString);
-      Message request = parseQueueTrigger(inputString);
-      Message response = extension.processMessage(request);
-      serializer.serialize(output, response);
+      // Replace the raw body rather than keep both
+      record.body = readQueueMessageBody(record, sharedPayloadStore);
+      Message request = serializer.deserialize(record.body, Message.class);
+      extension.processMessage(request);
     } catch (ProcessingError e) {
-      logger.logMessage("Invocation terminated by a " + logger.PROCESSING_ERROR);
+      logger.logMessage("Message " + record.messageId + " terminated by a " + logger.PROCESSING_ERROR);
     } catch (RetriableError e) {
-      logger.logMessage("Invocation terminated by a " + logger.RETRIABLE_HTTP_ERROR);
-      // When an unhandled exception occurs, the current message isn't deleted from the queue and will be automatically retried.
-      throw e;
+      logger.logMessage("Message " + record.messageId + " terminated by a " + logger.RETRIABLE_HTTP_ERROR);
+      // Failed messages aren't deleted from the queue and will be automatically retried.
+      triggerResponse.addFailure(record.messageId);
+      // The whole message is redelivered, so there's no need to send its buffered calls now.
+      if (extension.triggerTrackBuffer != null) {
+        extension.triggerTrackBuffer.discardSource(record.messageId);
+      }
+      if (extension.triggerUserUpdateBuffer != null) {
+        extension.triggerUserUpdateBuffer.discardSource(record.messageId);
+      }
     } catch (Exception e) {
-      logger.logMessage("Invocation terminated by an " + logger.UNEXPECTED_ERROR);
+      logger.logMessage("Message " + record.messageId + " terminated by an " + logger.UNEXPECTED_ERROR);
       logger.logUnexpectedError(e);
     }
   }
 
-  public static Message parseQueueTrigger(String triggerString) throws IOException {
-    QueueTrigger trigger = mapper.readValue(triggerString, QueueTrigger.class);
-    String messageBody = trigger.records.get(0).body;
-    Message request = serializer.deserialize(messageBody, Message.class);
-    return request;
+  /**
+   * Load and initialize the classes a request goes through, so the first invocation doesn't pay
+   * for them: the bundled priming trigger is parsed and its messages are round-tripped through
+   * the MessageSerializer, and an Iterable request is built, but not sent, to load Retrofit,
+   * OkHttp and Gson. Nothing leaves the JVM, so this can also run before a checkpoint is taken,
+   * e.g. from a CRaC beforeCheckpoint hook. Only the first call in a JVM does any work.
+   *
+   * @return false if priming failed; the handler still works, the first invocation is just slower
+   */
+  public boolean prime() {
+    synchronized (IterableLambdaEndpoint.class) {
+      if (primed == null) {
+        primed = primeClasses();
+      }
+      return primed;
+    }
+  }
+
+  private boolean primeClasses() {
+    try (InputStream input = IterableLambdaEndpoint.class.getResourceAsStream(PRIMING_TRIGGER_RESOURCE);
+         JsonParser parser = openQueueTrigger(input)) {
+      QueueMessageBody record;
+      while ((record = nextQueueMessage(parser)) != null) {
+        serializer.serialize(parseQueueMessage(record));
+      }
+      mapper.writeValueAsString(new QueueTriggerResponse());
+      iterableService.track("", new TrackRequest("priming")).request();
+      return true;
+    } catch (IOException | RuntimeException e) {
+      new IterableExtensionLogger(null, blobbyShipper, false).logMessage("Unable to prime the Lambda: " + e);
+      return false;
+    }
+  }
+
+  public static QueueTrigger parseQueueTrigger(String triggerString) throws IOException {
+    return mapper.readValue(triggerString, QueueTrigger.class);
+  }
+
+  /**
+   * Open a parser over a trigger, positioned at the start of its Records array.
+   *
+   * @throws IOException if the trigger isn't valid JSON or has no Records
+   */
+  static JsonParser openQueueTrigger(InputStream trigger) throws IOException {
+    JsonParser parser = mapper.getFactory().createParser(trigger);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("The queue trigger is not a JSON object");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("Records".equals(fieldName) && value == JsonToken.START_ARRAY) {
+          return parser;
+        }
+        parser.skipChildren();
+      }
+      throw new IOException("The queue trigger has no Records");
+    } catch (IOException | RuntimeException e) {
+      parser.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the next record of a parser opened with openQueueTrigger, or null after the last one
+   */
+  static QueueMessageBody nextQueueMessage(JsonParser parser) throws IOException {
+    JsonToken token = parser.nextToken();
+    if (token == JsonToken.END_ARRAY) {
+      return null;
+    }
+    if (token != JsonToken.START_OBJECT) {
+      throw new IOException("Expected a queue message but found " + token);
+    }
+    return parser.readValueAs(QueueMessageBody.class);
+  }
+
+  public static Message parseQueueMessage(QueueMessageBody record) throws IOException {
+    return serializer.deserialize(readQueueMessageBody(record, sharedPayloadStore), Message.class);
+  }
+
+  /**
+   * Undo the encoding the ingress Lambda applied to the record: fetch the body from the payload
+   * store if the record only carries its payloadKey, and decompress it if its contentEncoding is
+   * gzip+base64.
+   *
+   * @throws RetriableError if the body couldn't be read from the payload store
+   * @throws ProcessingError if the body can't be decoded
+   */
+  static String readQueueMessageBody(QueueMessageBody record, PayloadStore payloadStore) throws IOException {
+    String payloadKey = getAttribute(record, QueueMessageEncoding.PAYLOAD_KEY_ATTRIBUTE);
+    String contentEncoding = getAttribute(record, QueueMessageEncoding.CONTENT_ENCODING_ATTRIBUTE);
+    if (payloadKey == null && contentEncoding == null) {
+      return record.body;
+    }
+
+    byte[] body;
+    if (payloadKey != null) {
+      if (payloadStore == null) {
+        throw new ProcessingError("Message payload " + payloadKey + " is stored, but no payload store is configured");
+      }
+      try {
+        body = payloadStore.get(payloadKey);
+      } catch (IOException e) {
+        throw new RetriableError(e);
+      }
+    } else {
+      body = record.body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    if (contentEncoding == null) {
+      return new String(body, StandardCharsets.UTF_8);
+    }
+    if (!QueueMessageEncoding.GZIP_BASE64.equals(contentEncoding)) {
+      throw new ProcessingError("Unsupported message content encoding: " + contentEncoding);
+    }
+    try {
+      return QueueMessageEncoding.decodeGzipBase64(body);
+    } catch (IOException e) {
+      throw new ProcessingError("Unable to decode message: " + e.getMessage());
+    }
+  }
+
+  private static String getAttribute(QueueMessageBody record, String name) {
+    if (record.messageAttributes == null) {
+      return null;
+    }
+    QueueMessageAttribute attribute = record.messageAttributes.get(name);
+    return attribute != null ? attribute.stringValue : null;
+  }
+
+  private static int getIntEnv(String name, int defaultValue) {
+    String value = System.getenv(name);
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      int parsed = Integer.parseInt(value.trim());
+      return parsed > 0 ? parsed : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Keeps a copy of the first bytes read through it, up to a limit.
+   */
+  private static class CapturingInputStream extends FilterInputStream {
+    private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    private final int maxCapturedBytes;
+
+    CapturingInputStream(InputStream in, int maxCapturedBytes) {
+      super(in);
+      this.maxCapturedBytes = maxCapturedBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1 && captured.size() < maxCapturedBytes) {
+        captured.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        captured.write(buffer, offset, Math.min(read, maxCapturedBytes - captured.size()));
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes would leave a gap in the copy
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    String getCaptured() {
+      return new String(captured.toByteArray(), StandardCharsets.UTF_8);
+    }
   }
 }
@@ -0,0 +1,151 @@
+package com.mparticle.ext.iterable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.util.*;
+
+/**
+ * Aggregates the metrics of one invocation and renders them as a single CloudWatch Embedded
+ * Metric Format (EMF) document, which CloudWatch turns into metrics when it's written to the
+ * Lambda log stream.
+ *
+ * Iterable calls are measured per endpoint: latency, the HTTP status (or the reason no status
+ * was received), and the time spent building and serializing the request apart from the time
+ * spent on the network. Latencies are kept as a uniform sample of at most 100 values, the most
+ * EMF accepts for one metric, so CloudWatch can still compute percentiles from them.
+ *
+ * Endpoint metrics are named "metric.endpoint", e.g. "IterableLatency.events/track", since the
+ * dimensions of an EMF document have a single value.
+ */
+public class IterableMetrics {
+
+  public static final String NAMESPACE = "IterableExtension";
+  static final int MAX_VALUES_PER_METRIC = 100;
+  static final int MAX_METRICS_PER_DIRECTIVE = 100;
+  private static final String UNIT_MILLISECONDS = "Milliseconds";
+  private static final String UNIT_COUNT = "Count";
+  private static final Gson gson = new GsonBuilder().create();
+
+  private final Map<String, Sample> samples = new TreeMap<>();
+  private final Map<String, Long> counts = new TreeMap<>();
+  private final Random random = new Random();
+
+  /**
+   * @param status the HTTP status code, or "Timeout" if no response was received in time
+   */
+  public synchronized void recordIterableCall(String path, String status, long serializationNanos, long networkNanos) {
+    String endpoint = getEndpointName(path);
+    addSample("IterableLatency." + endpoint, UNIT_MILLISECONDS, (serializationNanos + networkNanos) / 1e6);
+    addSample("IterableSerializationTime." + endpoint, UNIT_MILLISECONDS, serializationNanos / 1e6);
+    addSample("IterableNetworkTime." + endpoint, UNIT_MILLISECONDS, networkNanos / 1e6);
+    increment("IterableCalls." + endpoint, 1);
+    increment("IterableStatus." + status + "." + endpoint, 1);
+  }
+
+  /**
+   * Record a call that never reached Iterable, e.g. because of the client-side rate limit.
+   */
+  public synchronized void recordIterableRejection(String path, String reason) {
+    increment("IterableStatus." + reason + "." + getEndpointName(path), 1);
+  }
+
+  /**
+   * Record an mParticle batch and the type of each of its events.
+   */
+  public synchronized void recordBatch(List<String> eventTypes) {
+    addSample("BatchSize", UNIT_COUNT, eventTypes.size());
+    increment("Batches", 1);
+    for (String eventType : eventTypes) {
+      increment("Events." + eventType, 1);
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    return samples.isEmpty() && counts.isEmpty();
+  }
+
+  /**
+   * @param dimensionValue the value of the FunctionName dimension every metric is reported with
+   */
+  public synchronized String toEmfDocument(long timestampMillis, String dimensionValue) {
+    Map<String, Object> document = new LinkedHashMap<>();
+    List<Map<String, String>> definitions = new ArrayList<>();
+    for (Map.Entry<String, Sample> sample : samples.entrySet()) {
+      definitions.add(createDefinition(sample.getKey(), sample.getValue().unit));
+      document.put(sample.getKey(), sample.getValue().values);
+    }
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      definitions.add(createDefinition(count.getKey(), UNIT_COUNT));
+      document.put(count.getKey(), count.getValue());
+    }
+
+    List<Map<String, Object>> directives = new ArrayList<>();
+    for (int i = 0; i < definitions.size(); i += MAX_METRICS_PER_DIRECTIVE) {
+      Map<String, Object> directive = new LinkedHashMap<>();
+      directive.put("Namespace", NAMESPACE);
+      directive.put("Dimensions", Collections.singletonList(Collections.singletonList("FunctionName")));
+      directive.put("Metrics", definitions.subList(i, Math.min(i + MAX_METRICS_PER_DIRECTIVE, definitions.size())));
+      directives.add(directive);
+    }
+    Map<String, Object> metadata = new LinkedHashMap<>();
+    metadata.put("Timestamp", timestampMillis);
+    metadata.put("CloudWatchMetrics", directives);
+
+    Map<String, Object> emf = new LinkedHashMap<>();
+    emf.put("_aws", metadata);
+    emf.put("FunctionName", dimensionValue);
+    emf.putAll(document);
+    return gson.toJson(emf);
+  }
+
+  /**
+   * "/api/events/track" becomes "events/track".
+   */
+  static String getEndpointName(String path) {
+    if (path == null) {
+      return "unknown";
+    }
+    return path.startsWith("/api/") ? path.substring("/api/".length()) : path;
+  }
+
+  private static Map<String, String> createDefinition(String name, String unit) {
+    Map<String, String> definition = new LinkedHashMap<>();
+    definition.put("Name", name);
+    definition.put("Unit", unit);
+    return definition;
+  }
+
+  private void addSample(String name, String unit, double value) {
+    samples.computeIfAbsent(name, k -> new Sample(unit)).add(value, random);
+  }
+
+  private void increment(String name, long delta) {
+    counts.merge(name, delta, Long::sum);
+  }
+
+  /**
+   * A uniform sample of the recorded values, kept with reservoir sampling.
+   */
+  private static class Sample {
+    final String unit;
+    final List<Double> values = new ArrayList<>();
+    long seen;
+
+    Sample(String unit) {
+      this.unit = unit;
+    }
+
+    void add(double value, Random random) {
+      seen++;
+      if (values.size() < MAX_VALUES_PER_METRIC) {
+        values.add(value);
+        return;
+      }
+      long index = (long) (random.nextDouble() * seen);
+      if (index < MAX_VALUES_PER_METRIC) {
+        values.set((int) index, value);
+      }
+    }
+  }
+}
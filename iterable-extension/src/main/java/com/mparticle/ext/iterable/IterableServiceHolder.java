@@ -0,0 +1,97 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableService;
+import com.mparticle.iterable.RateLimitInterceptor;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide holder for the IterableService. Lambda reuses the JVM across warm invocations,
+ * so sharing one service (and the OkHttpClient behind it) lets consecutive invocations reuse
+ * pooled connections to the Iterable API instead of paying for a new TLS handshake each time.
+ *
+ * Setting RATE_LIMIT_PER_SECOND installs a client-side rate limiter with that rate for every
+ * API key and endpoint. RATE_LIMITS overrides it per endpoint as a comma separated list of
+ * path=rate pairs, e.g. "/api/events/track=100,/api/users/update=50", and RATE_LIMIT_MAX_WAIT_MS
+ * is how long a request may wait for its turn before failing with a RetriableError.
+ *
+ * ITERABLE_API_BASE_URL sends every request to another host instead of api.iterable.com, e.g. a
+ * fake API for load tests.
+ */
+public class IterableServiceHolder {
+
+  static final long DEFAULT_RATE_LIMIT_MAX_WAIT_MS = 500;
+
+  private IterableServiceHolder() {
+  }
+
+  private static class LazyHolder {
+    static final IterableService INSTANCE = createService();
+  }
+
+  public static IterableService getInstance() {
+    return LazyHolder.INSTANCE;
+  }
+
+  private static IterableService createService() {
+    OkHttpClient client = IterableService.newHttpClient(createRateLimiter());
+    String baseUrl = System.getenv("ITERABLE_API_BASE_URL");
+    if (baseUrl != null && !baseUrl.isEmpty()) {
+      HttpUrl url = HttpUrl.parse(baseUrl);
+      if (url == null) {
+        throw new IllegalArgumentException("ITERABLE_API_BASE_URL is not a valid URL: " + baseUrl);
+      }
+      return IterableService.newInstance(url, client);
+    }
+    return IterableService.newInstance(client);
+  }
+
+  static RateLimitInterceptor createRateLimiter() {
+    double defaultRate = parseRate(System.getenv("RATE_LIMIT_PER_SECOND"));
+    if (defaultRate <= 0) {
+      return null;
+    }
+    long maxWaitMillis = DEFAULT_RATE_LIMIT_MAX_WAIT_MS;
+    String maxWait = System.getenv("RATE_LIMIT_MAX_WAIT_MS");
+    if (maxWait != null && !maxWait.isEmpty()) {
+      try {
+        maxWaitMillis = Long.parseLong(maxWait.trim());
+      } catch (NumberFormatException ignored) {
+
+      }
+    }
+    return new RateLimitInterceptor(defaultRate, parseRatesByPath(System.getenv("RATE_LIMITS")), maxWaitMillis);
+  }
+
+  static Map<String, Double> parseRatesByPath(String rates) {
+    Map<String, Double> ratesByPath = new HashMap<>();
+    if (rates == null) {
+      return ratesByPath;
+    }
+    for (String pair : rates.split(",")) {
+      String[] pathAndRate = pair.split("=");
+      if (pathAndRate.length != 2) {
+        continue;
+      }
+      double rate = parseRate(pathAndRate[1]);
+      if (rate > 0) {
+        ratesByPath.put(pathAndRate[0].trim(), rate);
+      }
+    }
+    return ratesByPath;
+  }
+
+  private static double parseRate(String rate) {
+    if (rate == null || rate.isEmpty()) {
+      return 0;
+    }
+    try {
+      return Double.parseDouble(rate.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
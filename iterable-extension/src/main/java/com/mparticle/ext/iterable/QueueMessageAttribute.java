@@ -0,0 +1,13 @@
+package com.mparticle.ext.iterable;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class QueueMessageAttribute {
+  @JsonProperty(value = "stringValue")
+  public String stringValue;
+
+  @JsonProperty(value = "dataType")
+  public String dataType;
+}
@@ -3,8 +3,16 @@ package com.mparticle.ext.iterable;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Map;
+
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class QueueMessageBody {
+  @JsonProperty(value = "messageId")
+  public String messageId;
+
   @JsonProperty(value = "body", required = true)
   public String body;
+
+  @JsonProperty(value = "messageAttributes")
+  public Map<String, QueueMessageAttribute> messageAttributes;
 }
@@ -0,0 +1,33 @@
+package com.mparticle.ext.iterable;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Partial batch response for an SQS trigger. Only the messages listed in batchItemFailures are
+ * returned to the queue for redelivery; every other message in the trigger is deleted.
+ *
+ * Requires ReportBatchItemFailures to be enabled on the event source mapping.
+ */
+public class QueueTriggerResponse {
+  @JsonProperty(value = "batchItemFailures")
+  public List<BatchItemFailure> batchItemFailures = new ArrayList<>();
+
+  public void addFailure(String messageId) {
+    batchItemFailures.add(new BatchItemFailure(messageId));
+  }
+
+  public static class BatchItemFailure {
+    @JsonProperty(value = "itemIdentifier")
+    public String itemIdentifier;
+
+    public BatchItemFailure() {
+    }
+
+    public BatchItemFailure(String itemIdentifier) {
+      this.itemIdentifier = itemIdentifier;
+    }
+  }
+}
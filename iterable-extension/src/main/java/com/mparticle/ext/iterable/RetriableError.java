@@ -14,4 +14,8 @@ public class RetriableError extends IOException {
   public RetriableError(String message) {
     super(message);
   }
+
+  public RetriableError(Throwable cause) {
+    super(cause);
+  }
 }
@@ -0,0 +1,126 @@
+package com.mparticle.ext.iterable;
+
+/**
+ * Coerces mParticle's string attribute values to the scalar types Iterable understands.
+ *
+ * Values are classified in a single pass over their characters, so the common case of a
+ * non-numeric string (names, emails, URLs) is rejected without allocating or throwing.
+ * Integral values become an Integer when they fit and a Long otherwise. Decimal and exponent
+ * forms become a Double, except that whole numbers that fit in an int, such as "1.0" or "1.5e3",
+ * become an Integer as they always have. Anything else, including values with surrounding whitespace, NaN,
+ * Infinity and integers beyond the range of a long, is returned unchanged.
+ */
+public class ScalarClassifier {
+
+  private ScalarClassifier() {
+  }
+
+  /**
+   * @return a Boolean, Integer, Long or Double for scalar values, otherwise the value itself
+   */
+  public static Object coerce(String value) {
+    if (value == null || value.isEmpty()) {
+      return value;
+    }
+    char first = value.charAt(0);
+    if (first == 't' || first == 'T') {
+      return "true".equalsIgnoreCase(value) ? Boolean.TRUE : value;
+    }
+    if (first == 'f' || first == 'F') {
+      return "false".equalsIgnoreCase(value) ? Boolean.FALSE : value;
+    }
+
+    int length = value.length();
+    int i = 0;
+    if (first == '-' || first == '+') {
+      i++;
+    }
+    int mantissaDigits = 0;
+    while (i < length && isDigit(value.charAt(i))) {
+      i++;
+      mantissaDigits++;
+    }
+    boolean isIntegral = true;
+    if (i < length && value.charAt(i) == '.') {
+      isIntegral = false;
+      i++;
+      while (i < length && isDigit(value.charAt(i))) {
+        i++;
+        mantissaDigits++;
+      }
+    }
+    if (mantissaDigits == 0) {
+      return value;
+    }
+    if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+      isIntegral = false;
+      i++;
+      if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+        i++;
+      }
+      int exponentDigits = 0;
+      while (i < length && isDigit(value.charAt(i))) {
+        i++;
+        exponentDigits++;
+      }
+      if (exponentDigits == 0) {
+        return value;
+      }
+    }
+    if (i != length) {
+      return value;
+    }
+
+    if (isIntegral) {
+      return parseIntegral(value);
+    }
+    // The grammar above is a subset of what parseDouble accepts, so it can't throw here.
+    double doubleValue = Double.parseDouble(value);
+    if (Double.isInfinite(doubleValue)) {
+      return value;
+    }
+    if (doubleValue % 1 == 0 && doubleValue >= Integer.MIN_VALUE && doubleValue <= Integer.MAX_VALUE) {
+      return (int) doubleValue;
+    }
+    return doubleValue;
+  }
+
+  /**
+   * Parse a value already known to be an optionally signed run of digits, accumulating
+   * negatively like Long.parseLong so Long.MIN_VALUE is representable.
+   */
+  private static Object parseIntegral(String value) {
+    int i = 0;
+    boolean negative = false;
+    char first = value.charAt(0);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      i++;
+    }
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multiplyMin = limit / 10;
+    long result = 0;
+    for (int length = value.length(); i < length; i++) {
+      int digit = value.charAt(i) - '0';
+      if (result < multiplyMin) {
+        return value;
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        return value;
+      }
+      result -= digit;
+    }
+    if (!negative) {
+      result = -result;
+    }
+    if (result >= Integer.MIN_VALUE && result <= Integer.MAX_VALUE) {
+      return (int) result;
+    }
+    return result;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -0,0 +1,172 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.TrackRequest;
+
+import java.util.*;
+
+/**
+ * Collects TrackRequests so they can be sent to Iterable's events/trackBulk endpoint in as few
+ * calls as possible. Requests are grouped by API key and split into chunks that stay below
+ * Iterable's per-request event count and payload size limits.
+ *
+ * Each entry remembers the event it was built from and the source (the SQS message ID when
+ * events are gathered across the records of a trigger) so failures can be mapped back.
+ */
+public class TrackBulkBuffer {
+
+  public static final int MAX_EVENTS_PER_REQUEST = 1000;
+  // Iterable rejects bulk payloads above 4MB; leave headroom for the size estimate.
+  public static final int MAX_PAYLOAD_BYTES = 3 * 1024 * 1024;
+  private static final int REQUEST_OVERHEAD_BYTES = 128;
+  private static final int FIELD_OVERHEAD_BYTES = 8;
+
+  private final int maxEventsPerRequest;
+  private final int maxPayloadBytes;
+  private final Map<String, List<Entry>> entriesByApiKey = new LinkedHashMap<>();
+  private String currentSource;
+
+  public TrackBulkBuffer() {
+    this(MAX_EVENTS_PER_REQUEST, MAX_PAYLOAD_BYTES);
+  }
+
+  TrackBulkBuffer(int maxEventsPerRequest, int maxPayloadBytes) {
+    this.maxEventsPerRequest = maxEventsPerRequest;
+    this.maxPayloadBytes = maxPayloadBytes;
+  }
+
+  /**
+   * Tag every entry added from now on with the given source.
+   */
+  public void setCurrentSource(String source) {
+    this.currentSource = source;
+  }
+
+  public void add(String apiKey, TrackRequest request, UUID eventId) {
+    add(apiKey, request, eventId, null);
+  }
+
+  /**
+   * @param checkpointKey recorded in the CheckpointStore once the entry has been sent, may be null
+   */
+  public void add(String apiKey, TrackRequest request, UUID eventId, String checkpointKey) {
+    entriesByApiKey.computeIfAbsent(apiKey, k -> new ArrayList<>())
+        .add(new Entry(request, eventId, currentSource, checkpointKey, estimateSize(request)));
+  }
+
+  /**
+   * Move the events buffered for an email to the address it was changed to. Once Iterable has
+   * renamed the user, events tracked for the old address would create a new profile for it.
+   */
+  public void renameEmail(String apiKey, String currentEmail, String newEmail) {
+    List<Entry> entries = entriesByApiKey.get(apiKey);
+    if (entries == null || currentEmail == null || newEmail == null) {
+      return;
+    }
+    for (ListIterator<Entry> it = entries.listIterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (currentEmail.equals(entry.request.email)) {
+        entry.request.email = newEmail;
+        it.set(new Entry(entry.request, entry.eventId, entry.source, entry.checkpointKey, estimateSize(entry.request)));
+      }
+    }
+  }
+
+  /**
+   * Drop every entry added for the given source, e.g. when its message will be redelivered anyway.
+   */
+  public void discardSource(String source) {
+    for (List<Entry> entries : entriesByApiKey.values()) {
+      entries.removeIf(entry -> Objects.equals(source, entry.source));
+    }
+  }
+
+  public boolean isEmpty() {
+    for (List<Entry> entries : entriesByApiKey.values()) {
+      if (!entries.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Remove every buffered entry and return them split into chunks that fit in one bulk request.
+   */
+  public List<Chunk> drainChunks() {
+    List<Chunk> chunks = new ArrayList<>();
+    for (Map.Entry<String, List<Entry>> apiKeyEntries : entriesByApiKey.entrySet()) {
+      Chunk chunk = new Chunk(apiKeyEntries.getKey());
+      int chunkBytes = REQUEST_OVERHEAD_BYTES;
+      for (Entry entry : apiKeyEntries.getValue()) {
+        boolean isFull = chunk.entries.size() >= maxEventsPerRequest
+            || chunkBytes + entry.estimatedBytes > maxPayloadBytes;
+        if (isFull && !chunk.entries.isEmpty()) {
+          chunks.add(chunk);
+          chunk = new Chunk(apiKeyEntries.getKey());
+          chunkBytes = REQUEST_OVERHEAD_BYTES;
+        }
+        chunk.entries.add(entry);
+        chunkBytes += entry.estimatedBytes;
+      }
+      if (!chunk.entries.isEmpty()) {
+        chunks.add(chunk);
+      }
+    }
+    entriesByApiKey.clear();
+    return chunks;
+  }
+
+  /**
+   * Estimate the serialized JSON size of a request without serializing it twice.
+   */
+  static int estimateSize(TrackRequest request) {
+    int size = REQUEST_OVERHEAD_BYTES
+        + length(request.getEventName())
+        + length(request.email)
+        + length(request.userId)
+        + length(request.id);
+    if (request.dataFields != null) {
+      for (Map.Entry<String, Object> field : request.dataFields.entrySet()) {
+        size += FIELD_OVERHEAD_BYTES + length(field.getKey()) + length(String.valueOf(field.getValue()));
+      }
+    }
+    return size;
+  }
+
+  private static int length(String value) {
+    return value == null ? 0 : value.length();
+  }
+
+  public static class Entry {
+    final TrackRequest request;
+    final UUID eventId;
+    final String source;
+    final String checkpointKey;
+    final int estimatedBytes;
+
+    Entry(TrackRequest request, UUID eventId, String source, String checkpointKey, int estimatedBytes) {
+      this.request = request;
+      this.eventId = eventId;
+      this.source = source;
+      this.checkpointKey = checkpointKey;
+      this.estimatedBytes = estimatedBytes;
+    }
+  }
+
+  public static class Chunk {
+    final String apiKey;
+    final List<Entry> entries = new ArrayList<>();
+
+    Chunk(String apiKey) {
+      this.apiKey = apiKey;
+    }
+
+    Set<String> getSources() {
+      Set<String> sources = new LinkedHashSet<>();
+      for (Entry entry : entries) {
+        sources.add(entry.source);
+      }
+      return sources;
+    }
+  }
+}
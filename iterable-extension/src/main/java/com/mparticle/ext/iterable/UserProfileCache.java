@@ -0,0 +1,125 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.UserRequest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers a hash of the dataFields last sent to Iterable for each user, so a user update that
+ * wouldn't change anything can be skipped. Entries expire after a TTL, which bounds how long a
+ * change made to the user outside of mParticle can be masked, and only the most recently used
+ * users are kept.
+ *
+ * Like the InMemoryCheckpointStore, the cache only lives as long as the warm Lambda container.
+ */
+public class UserProfileCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+  public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final long ttlMillis;
+  private final Map<String, Entry> entries;
+
+  public UserProfileCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+  }
+
+  public UserProfileCache(int maxEntries, long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @return true if the same hash was sent for the user within the TTL
+   */
+  public synchronized boolean isUnchanged(String key, long hash, long nowMillis) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return false;
+    }
+    if (nowMillis - entry.sentAtMillis >= ttlMillis) {
+      entries.remove(key);
+      return false;
+    }
+    return entry.hash == hash;
+  }
+
+  /**
+   * Record that Iterable accepted an update with the given hash for the user.
+   */
+  public synchronized void recordSent(String key, long hash, long nowMillis) {
+    entries.put(key, new Entry(hash, nowMillis));
+  }
+
+  /**
+   * Forget what was sent for the user, e.g. because a newer update is waiting to be sent.
+   */
+  public synchronized void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  static String getKey(String apiKey, UserRequest request) {
+    return apiKey + '\u0000' + request.email + '\u0000' + request.userId;
+  }
+
+  /**
+   * A 64-bit hash of the dataFields that doesn't depend on their iteration order. Each field is
+   * hashed with FNV-1a over its key, value and value type, and the mixed field hashes are summed.
+   */
+  static long hash(Map<String, Object> dataFields) {
+    if (dataFields == null) {
+      return 0;
+    }
+    long sum = dataFields.size();
+    for (Map.Entry<String, Object> field : dataFields.entrySet()) {
+      long fieldHash = update(FNV_OFFSET_BASIS, field.getKey());
+      Object value = field.getValue();
+      // Tag the value's type so "1" and 1 don't collide
+      fieldHash = (fieldHash ^ (value == null ? 0 : value.getClass().getName().hashCode())) * FNV_PRIME;
+      if (value != null) {
+        fieldHash = update(fieldHash, value.toString());
+      }
+      sum += mix(fieldHash);
+    }
+    return mix(sum);
+  }
+
+  private static long update(long hash, String value) {
+    // Prefix the length so ("ab", "c") and ("a", "bc") differ
+    hash = (hash ^ value.length()) * FNV_PRIME;
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * The finalizer of MurmurHash3, so summed field hashes don't cancel out.
+   */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static class Entry {
+    final long hash;
+    final long sentAtMillis;
+
+    Entry(long hash, long sentAtMillis) {
+      this.hash = hash;
+      this.sentAtMillis = sentAtMillis;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.registration.Account;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.mparticle.ext.iterable.IterableExtension.*;
+import static org.junit.Assert.*;
+
+public class AccountConfigTest {
+
+  @Test
+  public void testForAccount() {
+    Map<String, String> settings = new HashMap<>();
+    settings.put(SETTING_API_KEY, "config test key");
+    settings.put(SETTING_USER_ID_FIELD, USER_ID_FIELD_MPID);
+    settings.put(SETTING_COERCE_STRINGS_TO_SCALARS, "True");
+    settings.put(SETTING_GCM_NAME_KEY, "gcm name");
+
+    AccountConfig config = AccountConfig.forAccount(createAccount(settings));
+
+    assertEquals("config test key", config.apiKey);
+    assertTrue(config.useMPID);
+    assertTrue(config.coerceStrings);
+    assertEquals("gcm name", config.gcmName);
+    assertNull(config.apnsKey);
+    assertNull(config.apnsSandboxKey);
+  }
+
+  @Test
+  public void testAccountsWithEqualSettingsShareConfig() {
+    Map<String, String> settings = new HashMap<>();
+    settings.put(SETTING_API_KEY, "shared config key");
+    AccountConfig config = AccountConfig.forAccount(createAccount(settings));
+
+    assertSame(config, AccountConfig.forAccount(createAccount(new HashMap<>(settings))));
+    assertFalse(config.useMPID);
+    assertFalse(config.coerceStrings);
+  }
+
+  @Test
+  public void testChangedSettingsAreParsedAgain() {
+    Map<String, String> settings = new HashMap<>();
+    settings.put(SETTING_API_KEY, "changed config key");
+    Account account = createAccount(settings);
+    AccountConfig config = AccountConfig.forAccount(account);
+
+    settings.put(SETTING_COERCE_STRINGS_TO_SCALARS, "true");
+    AccountConfig changedConfig = AccountConfig.forAccount(account);
+
+    assertNotSame(config, changedConfig);
+    assertFalse(config.coerceStrings);
+    assertTrue(changedConfig.coerceStrings);
+  }
+
+  private static Account createAccount(Map<String, String> settings) {
+    Account account = new Account();
+    account.setAccountSettings(settings);
+    return account;
+  }
+}
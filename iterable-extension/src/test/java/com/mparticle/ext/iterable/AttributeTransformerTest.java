@@ -0,0 +1,66 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.mparticle.ext.iterable.IterableExtension.ITERABLE_RESERVED_PHONE_ATTR;
+import static com.mparticle.ext.iterable.IterableExtension.MPARTICLE_RESERVED_PHONE_ATTR;
+import static org.junit.Assert.*;
+
+public class AttributeTransformerTest {
+
+  @Test
+  public void testToDataFieldsWithCoercion() {
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put(MPARTICLE_RESERVED_PHONE_ATTR, "555 0109");
+    attributes.put("orders", "17");
+    attributes.put("plan", "premium");
+
+    Map<String, Object> dataFields = AttributeTransformer.toDataFields(attributes, true);
+
+    assertEquals(3, dataFields.size());
+    // Phone numbers stay strings even when they're all digits
+    assertEquals("5550109", dataFields.get(ITERABLE_RESERVED_PHONE_ATTR));
+    assertFalse(dataFields.containsKey(MPARTICLE_RESERVED_PHONE_ATTR));
+    assertEquals(17, dataFields.get("orders"));
+    assertEquals("premium", dataFields.get("plan"));
+  }
+
+  @Test
+  public void testToDataFieldsWithoutCoercion() {
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("orders", "17");
+    attributes.put("newsletter", "true");
+
+    Map<String, Object> dataFields = AttributeTransformer.toDataFields(attributes, false);
+
+    assertEquals("17", dataFields.get("orders"));
+    assertEquals("true", dataFields.get("newsletter"));
+    assertNull(AttributeTransformer.toDataFields(null, false));
+  }
+
+  @Test
+  public void testMobileTakesPrecedenceOverPhoneNumber() {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    attributes.put(MPARTICLE_RESERVED_PHONE_ATTR, "+1 (555) 876-5309");
+    attributes.put(ITERABLE_RESERVED_PHONE_ATTR, "+15550000000");
+
+    Map<String, Object> dataFields = AttributeTransformer.toDataFields(attributes, false);
+
+    assertEquals(1, dataFields.size());
+    assertEquals("+15558765309", dataFields.get(ITERABLE_RESERVED_PHONE_ATTR));
+  }
+
+  @Test
+  public void testNormalizePhoneNumber() {
+    String normalized = "+15558765309";
+    assertSame(normalized, AttributeTransformer.normalizePhoneNumber(normalized));
+    assertEquals("+15558765309", AttributeTransformer.normalizePhoneNumber("+1 (555) 876-5309"));
+    assertEquals("5558765309", AttributeTransformer.normalizePhoneNumber("555.876.5309 ext"));
+    assertEquals("", AttributeTransformer.normalizePhoneNumber("n/a"));
+    assertNull(AttributeTransformer.normalizePhoneNumber(null));
+  }
+}
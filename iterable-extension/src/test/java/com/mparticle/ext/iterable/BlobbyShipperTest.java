@@ -0,0 +1,148 @@
+package com.mparticle.ext.iterable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BlobbyShipperTest {
+
+  @Test
+  public void testPayloadsAreBatchedAndFlushed() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    RecordingBlobbyClient client = new RecordingBlobbyClient(release);
+    BlobbyShipper shipper = new BlobbyShipper(client, 10, 10);
+    String mparticleBatch = "{\"events\":[]}";
+
+    // The first payload is held in flight so the next ones queue up behind it
+    String first = shipper.submit(createMessage("first", mparticleBatch));
+    assertTrue(client.started.await(5, TimeUnit.SECONDS));
+    String second = shipper.submit(createMessage("second", mparticleBatch));
+    String third = shipper.submit(createMessage("third", mparticleBatch));
+    assertFalse(shipper.flush(50));
+    release.countDown();
+
+    assertTrue(shipper.flush(5000));
+    assertEquals(2, client.requests.size());
+    JsonObject batched = new Gson().fromJson(client.requests.get(1), JsonObject.class);
+    JsonArray entries = batched.getAsJsonArray("entries");
+    assertEquals(2, entries.size());
+    assertEquals(second, entries.get(0).getAsJsonObject().get("correlationId").getAsString());
+    assertEquals(third, entries.get(1).getAsJsonObject().get("correlationId").getAsString());
+    // The shared mParticle batch is only included once
+    assertEquals(1, batched.getAsJsonArray("mParticleBatches").size());
+    assertNotEquals(first, second);
+  }
+
+  @Test
+  public void testPayloadsAreDroppedWhenQueueIsFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    RecordingBlobbyClient client = new RecordingBlobbyClient(release);
+    BlobbyShipper shipper = new BlobbyShipper(client, 2, 10);
+
+    assertNotNull(shipper.submit(createMessage("first", null)));
+    assertNotNull(shipper.submit(createMessage("second", null)));
+    assertNull(shipper.submit(createMessage("third", null)));
+    release.countDown();
+
+    assertTrue(shipper.flush(5000));
+    assertEquals(1, shipper.getAndResetDroppedCount());
+    assertEquals(0, shipper.getAndResetDroppedCount());
+    assertNotNull(shipper.submit(createMessage("fourth", null)));
+    assertTrue(shipper.flush(5000));
+  }
+
+  @Test
+  public void testLoggerReturnsCorrelationId() throws Exception {
+    RecordingBlobbyClient client = new RecordingBlobbyClient(new CountDownLatch(0));
+    BlobbyShipper shipper = new BlobbyShipper(client);
+    IterableExtensionLogger logger = new IterableExtensionLogger("foo", shipper, true);
+    logger.setMparticleBatch("{\"events\":[]}");
+
+    logger.logProcessingError("Unable to process", UUID.randomUUID());
+
+    assertTrue(shipper.flush(5000));
+    assertEquals(1, client.requests.size());
+  }
+
+  @Test
+  public void testFailedBatchIsLogged() throws Exception {
+    BlobbyClient client = new BlobbyClient() {
+      @Override
+      public String log(String msg) throws IOException {
+        throw new IOException("Blobby responded with HTTP 503");
+      }
+    };
+    BlobbyShipper shipper = new BlobbyShipper(client);
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    PrintStream originalStdout = System.out;
+    System.setOut(new PrintStream(stdout, true));
+    String correlationId;
+    try {
+      correlationId = shipper.submit(createMessage("first", null));
+      assertTrue("A failed batch should still be flushed", shipper.flush(5000));
+    } finally {
+      System.setOut(originalStdout);
+    }
+
+    JsonObject logLine = new Gson().fromJson(stdout.toString().trim(), JsonObject.class);
+    assertEquals("Failed to send log payloads to Blobby", logLine.get("message").getAsString());
+    assertEquals(correlationId, logLine.get("correlationIds").getAsString());
+    assertTrue(logLine.get("error").getAsString().contains("HTTP 503"));
+  }
+
+  @Test
+  public void testCloseStopsWorker() throws Exception {
+    RecordingBlobbyClient client = new RecordingBlobbyClient(new CountDownLatch(0));
+    BlobbyShipper shipper = new BlobbyShipper(client);
+    shipper.submit(createMessage("first", null));
+    assertTrue(shipper.flush(5000));
+
+    shipper.close();
+
+    assertNull("Payloads submitted after close should be dropped", shipper.submit(createMessage("second", null)));
+    assertEquals(1, shipper.getAndResetDroppedCount());
+    client.worker.join(5000);
+    assertFalse(client.worker.isAlive());
+  }
+
+  private static Map<String, String> createMessage(String request, String mparticleBatch) {
+    Map<String, String> message = new HashMap<>();
+    message.put("request", request);
+    message.put("mParticleBatch", mparticleBatch);
+    return message;
+  }
+
+  private static class RecordingBlobbyClient extends BlobbyClient {
+    final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch started = new CountDownLatch(1);
+    volatile Thread worker;
+    private final CountDownLatch release;
+
+    RecordingBlobbyClient(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public String log(String msg) {
+      worker = Thread.currentThread();
+      started.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      requests.add(msg);
+      return "blobby-" + requests.size();
+    }
+  }
+}
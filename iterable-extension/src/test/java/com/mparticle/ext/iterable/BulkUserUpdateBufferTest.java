@@ -0,0 +1,83 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.UserUpdateRequest;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkUserUpdateBufferTest {
+
+  @Test
+  public void testUpdatesForTheSameUserAreCoalesced() {
+    BulkUserUpdateBuffer buffer = new BulkUserUpdateBuffer();
+    buffer.setCurrentSource("message 1");
+    buffer.add("key", createUserUpdate("user@iterable.com", "plan", "gold", "city", "Boston"), UUID.randomUUID(), 200);
+    buffer.setCurrentSource("message 2");
+    // Older batch processed later - its value for "plan" should lose
+    buffer.add("key", createUserUpdate("user@iterable.com", "plan", "silver", "zip", "02134"), UUID.randomUUID(), 100);
+    buffer.add("key", createUserUpdate("other@iterable.com", "plan", "bronze", null, null), UUID.randomUUID(), 100);
+
+    List<BulkUserUpdateBuffer.Chunk> chunks = buffer.drainChunks();
+    assertEquals(1, chunks.size());
+    assertEquals(2, chunks.get(0).users.size());
+    BulkUserUpdateBuffer.MergedUser user = chunks.get(0).users.get(0);
+    assertEquals("user@iterable.com", user.request.email);
+    assertEquals("gold", user.request.dataFields.get("plan"));
+    assertEquals("Boston", user.request.dataFields.get("city"));
+    assertEquals("02134", user.request.dataFields.get("zip"));
+    assertEquals(2, user.requestIds.size());
+    assertTrue(user.sources.contains("message 1"));
+    assertTrue(user.sources.contains("message 2"));
+    assertTrue("Draining should empty the buffer", buffer.isEmpty());
+  }
+
+  @Test
+  public void testUsersAreKeyedByUserIdWithoutEmail() {
+    BulkUserUpdateBuffer buffer = new BulkUserUpdateBuffer();
+    UserUpdateRequest first = createUserUpdate(null, "plan", "gold", null, null);
+    first.userId = "123";
+    UserUpdateRequest second = createUserUpdate(null, "plan", "silver", null, null);
+    second.userId = "123";
+    buffer.add("key", first, UUID.randomUUID(), 100);
+    buffer.add("key", second, UUID.randomUUID(), 200);
+
+    List<BulkUserUpdateBuffer.Chunk> chunks = buffer.drainChunks();
+    assertEquals(1, chunks.get(0).users.size());
+    assertEquals("silver", chunks.get(0).users.get(0).request.dataFields.get("plan"));
+  }
+
+  @Test
+  public void testDiscardSourceAndChunking() {
+    BulkUserUpdateBuffer buffer = new BulkUserUpdateBuffer(2, TrackBulkBuffer.MAX_PAYLOAD_BYTES);
+    buffer.setCurrentSource("message 1");
+    buffer.add("key", createUserUpdate("a@iterable.com", "plan", "gold", null, null), UUID.randomUUID(), 100);
+    buffer.setCurrentSource("message 2");
+    for (String email : new String[]{"b@iterable.com", "c@iterable.com", "d@iterable.com"}) {
+      buffer.add("key", createUserUpdate(email, "plan", "gold", null, null), UUID.randomUUID(), 100);
+    }
+    buffer.discardSource("message 1");
+
+    List<BulkUserUpdateBuffer.Chunk> chunks = buffer.drainChunks();
+    assertEquals(2, chunks.size());
+    assertEquals("b@iterable.com", chunks.get(0).users.get(0).request.email);
+    assertEquals(1, chunks.get(1).users.size());
+  }
+
+  private static UserUpdateRequest createUserUpdate(String email, String key1, String value1, String key2, String value2) {
+    UserUpdateRequest request = new UserUpdateRequest();
+    request.email = email;
+    Map<String, Object> dataFields = new HashMap<>();
+    dataFields.put(key1, value1);
+    if (key2 != null) {
+      dataFields.put(key2, value2);
+    }
+    request.dataFields = dataFields;
+    return request;
+  }
+}
@@ -0,0 +1,71 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAfterFailureRatio() {
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 1000);
+    for (int i = 0; i < CircuitBreaker.MIN_CALLS - 1; i++) {
+      assertTrue(breaker.tryAcquire(0));
+      assertNull(i % 2 == 0 ? breaker.recordFailure(0) : breaker.recordSuccess());
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+    assertTrue(breaker.tryAcquire(0));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.recordFailure(0));
+    assertFalse(breaker.tryAcquire(999));
+  }
+
+  @Test
+  public void testStaysClosedBelowFailureRatio() {
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 1000);
+    for (int i = 0; i < CircuitBreaker.WINDOW_SIZE * 2; i++) {
+      breaker.tryAcquire(0);
+      if (i % 3 == 0) {
+        breaker.recordFailure(0);
+      } else {
+        breaker.recordSuccess();
+      }
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenProbe() {
+    CircuitBreaker breaker = openBreaker();
+
+    assertTrue("The probe should be let through", breaker.tryAcquire(1000));
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse("Only one probe at a time", breaker.tryAcquire(1000));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.recordFailure(1000));
+    assertFalse(breaker.tryAcquire(1500));
+
+    assertTrue(breaker.tryAcquire(2000));
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.recordSuccess());
+    assertTrue(breaker.tryAcquire(2000));
+  }
+
+  @Test
+  public void testReleasedProbeCanBeRetried() {
+    CircuitBreaker breaker = openBreaker();
+
+    assertTrue(breaker.tryAcquire(1000));
+    breaker.release();
+    assertTrue(breaker.tryAcquire(1000));
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+  }
+
+  private static CircuitBreaker openBreaker() {
+    CircuitBreaker breaker = new CircuitBreaker(0.5, 1000);
+    for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+      breaker.tryAcquire(0);
+      breaker.recordFailure(0);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    return breaker;
+  }
+}
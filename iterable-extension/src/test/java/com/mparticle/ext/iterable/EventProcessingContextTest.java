@@ -0,0 +1,86 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.registration.Account;
+import com.mparticle.sdk.model.eventprocessing.*;
+import org.junit.Test;
+
+import java.util.*;
+
+import static com.mparticle.ext.iterable.IterableExtension.SETTING_API_KEY;
+import static org.junit.Assert.*;
+
+public class EventProcessingContextTest {
+
+  @Test
+  public void testIndexEvents() {
+    EventProcessingRequest request = createRequest();
+    UserIdentityChangeEvent emailAdded = createIdentityChange("added@mparticle.com", null);
+    UserIdentityChangeEvent emailChanged = createIdentityChange("new@mparticle.com", "old@mparticle.com");
+    UserIdentityChangeEvent emailRemovedOnly = createIdentityChange("", "old@mparticle.com");
+    PushMessageOpenEvent pushOpen = new PushMessageOpenEvent();
+    request.setEvents(Arrays.asList(emailAdded, new CustomEvent(), emailChanged, emailRemovedOnly, pushOpen));
+
+    EventProcessingContext context = new EventProcessingContext(request);
+
+    assertEquals(Collections.singletonList(emailAdded), context.getEmailAddedEvents());
+    assertEquals(Collections.singletonList(emailChanged), context.getEmailChangedEvents());
+    assertEquals(Collections.singletonList(pushOpen), context.getPushOpenEvents());
+  }
+
+  @Test
+  public void testIndexIdentities() {
+    EventProcessingRequest request = createRequest();
+    List<UserIdentity> identities = new ArrayList<>();
+    identities.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "first"));
+    identities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest@mparticle.com"));
+    identities.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "last"));
+    request.setUserIdentities(identities);
+    AndroidRuntimeEnvironment environment = new AndroidRuntimeEnvironment();
+    environment.setIdentities(Arrays.asList(
+        new DeviceIdentity(DeviceIdentity.Type.ANDROID_ID, Identity.Encoding.RAW, "android id"),
+        new DeviceIdentity(DeviceIdentity.Type.GOOGLE_ADVERTISING_ID, Identity.Encoding.RAW, "")));
+    request.setRuntimeEnvironment(environment);
+
+    EventProcessingContext context = new EventProcessingContext(request);
+
+    assertTrue(context.hasEmail());
+    assertEquals("mptest@mparticle.com", context.getEmail());
+    assertEquals("first", context.getFirstCustomerId());
+    assertEquals("last", context.getLastCustomerId());
+    // An empty GAID falls back to the Android ID
+    assertEquals("android id", context.getDeviceId());
+  }
+
+  @Test
+  public void testAddEmail() {
+    EventProcessingContext context = new EventProcessingContext(createRequest());
+    assertFalse(context.hasEmail());
+
+    context.addEmail("1234@placeholder.email");
+
+    assertTrue(context.hasEmail());
+    assertEquals("1234@placeholder.email", context.getEmail());
+    assertFalse(context.hasCustomerId());
+  }
+
+  private static EventProcessingRequest createRequest() {
+    EventProcessingRequest request = new EventProcessingRequest();
+    Account account = new Account();
+    Map<String, String> settings = new HashMap<>();
+    settings.put(SETTING_API_KEY, "context test key");
+    account.setAccountSettings(settings);
+    request.setAccount(account);
+    return request;
+  }
+
+  private static UserIdentityChangeEvent createIdentityChange(String addedEmail, String removedEmail) {
+    UserIdentityChangeEvent event = new UserIdentityChangeEvent();
+    event.setAdded(Collections.singletonList(
+        new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, addedEmail)));
+    if (removedEmail != null) {
+      event.setRemoved(Collections.singletonList(
+          new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, removedEmail)));
+    }
+    return event;
+  }
+}
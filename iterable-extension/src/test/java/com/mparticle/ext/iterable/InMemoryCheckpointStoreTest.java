@@ -0,0 +1,30 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InMemoryCheckpointStoreTest {
+
+  @Test
+  public void testMarkCompleted() {
+    InMemoryCheckpointStore store = new InMemoryCheckpointStore();
+    assertFalse(store.isCompleted("batch/event"));
+    store.markCompleted("batch/event");
+    assertTrue(store.isCompleted("batch/event"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedKeyIsEvicted() {
+    InMemoryCheckpointStore store = new InMemoryCheckpointStore(2);
+    store.markCompleted("a");
+    store.markCompleted("b");
+    // Reading "a" makes "b" the least recently used
+    assertTrue(store.isCompleted("a"));
+    store.markCompleted("c");
+
+    assertTrue(store.isCompleted("a"));
+    assertFalse(store.isCompleted("b"));
+    assertTrue(store.isCompleted("c"));
+  }
+}
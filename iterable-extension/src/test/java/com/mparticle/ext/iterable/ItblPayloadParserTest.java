@@ -0,0 +1,51 @@
+package com.mparticle.ext.iterable;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ItblPayloadParserTest {
+
+  @Test
+  public void testParseIosPayload() throws Exception {
+    ItblPayloadParser.ItblPayload itbl = ItblPayloadParser.parse(readTestFixture("pushPayload_ios.json"));
+    assertEquals(12345, itbl.campaignId);
+    assertEquals(54321, itbl.templateId);
+    assertEquals("1dce4e505b11111ca1111d6fdd774fbd", itbl.messageId);
+  }
+
+  @Test
+  public void testParseAndroidPayload() throws Exception {
+    ItblPayloadParser.ItblPayload itbl = ItblPayloadParser.parse(readTestFixture("pushPayload_android.json"));
+    assertEquals(12345, itbl.campaignId);
+    assertEquals(54321, itbl.templateId);
+    assertEquals("1dce4e505b11111ca1111d6fdd774fbd", itbl.messageId);
+  }
+
+  @Test
+  public void testParsePayloadWithoutItbl() throws Exception {
+    assertNull(ItblPayloadParser.parse("{\"aps\":{\"alert\":\"hello\"}, \"route\":[1, {\"itbl\":{}}]}"));
+  }
+
+  @Test
+  public void testParseNonIntegerIds() throws Exception {
+    ItblPayloadParser.ItblPayload itbl = ItblPayloadParser.parse(
+        "{\"itbl\":{\"campaignId\":\"12345\", \"templateId\":12345678901, \"messageId\":null}}");
+    assertEquals(0, itbl.campaignId);
+    assertEquals(0, itbl.templateId);
+    assertNull(itbl.messageId);
+  }
+
+  private static String readTestFixture(String fileName) throws IOException {
+    try (InputStream input = new FileInputStream(new File("src/test/resources/" + fileName))) {
+      return IOUtils.toString(input, StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -21,6 +21,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.mparticle.ext.iterable.IterableExtension.*;
 import static org.junit.Assert.*;
@@ -133,6 +136,297 @@ public class IterableExtensionTest {
         assertEquals("Events should have been in order",4, request.getEvents().get(3).getTimestamp());
     }
 
+    @Test
+    public void testProcessEventProcessingRequestSendsEventsConcurrently() throws Exception {
+        int eventCount = 3;
+        List<String> callOrder = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch allInFlight = new CountDownLatch(eventCount);
+        AtomicBoolean sentConcurrently = new AtomicBoolean(true);
+
+        Call userUpdateCall = Mockito.mock(Call.class);
+        Mockito.when(userUpdateCall.execute()).thenAnswer(invocation -> {
+            callOrder.add("userUpdate");
+            return testSuccessResponse;
+        });
+        Call trackCall = Mockito.mock(Call.class);
+        Mockito.when(trackCall.execute()).thenAnswer(invocation -> {
+            callOrder.add("track");
+            allInFlight.countDown();
+            if (!allInFlight.await(5, TimeUnit.SECONDS)) {
+                sentConcurrently.set(false);
+            }
+            return testSuccessResponse;
+        });
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.concurrentRequestsEnabled = true;
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+        Mockito.when(iterableServiceMock.track(Mockito.any(), Mockito.any())).thenReturn(trackCall);
+
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.setUserIdentities(userIdentitiesWithEmail);
+        List<Event> events = new LinkedList<>();
+        for (int i = 0; i < eventCount; i++) {
+            CustomEvent event = new CustomEvent();
+            event.setName("Concurrent Event " + i);
+            event.setTimestamp(i);
+            event.setRequest(request);
+            events.add(event);
+        }
+        request.setEvents(events);
+
+        testExtension.processEventProcessingRequest(request);
+
+        Mockito.verify(iterableServiceMock, times(eventCount)).track(Mockito.any(), Mockito.any());
+        assertTrue("All track calls should have been in flight at the same time", sentConcurrently.get());
+        assertEquals(eventCount + 1, callOrder.size());
+        assertEquals("The user should be updated before events are tracked", "userUpdate", callOrder.get(0));
+    }
+
+    @Test(expected = RetriableError.class)
+    public void testProcessEventProcessingRequestConcurrentRetriableError() throws Exception {
+        Call trackCall = Mockito.mock(Call.class);
+        Mockito.when(trackCall.execute()).thenReturn(createErrorResponse(429, "RateLimitExceeded"));
+        Mockito.when(trackCall.request()).thenReturn(new Request.Builder()
+                .url("https://api.iterable.com/api/events/track")
+                .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), "{}"))
+                .build());
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.concurrentRequestsEnabled = true;
+        Mockito.when(iterableServiceMock.track(Mockito.any(), Mockito.any())).thenReturn(trackCall);
+
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.setUserIdentities(new LinkedList<>());
+        request.setDeviceApplicationStamp("1234");
+        CustomEvent event = new CustomEvent();
+        event.setName("Failing Event");
+        event.setRequest(request);
+        request.setEvents(new LinkedList<>(Collections.singletonList(event)));
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(createCallMockWithSuccessResponse());
+
+        testExtension.processEventProcessingRequest(request);
+    }
+
+    @Test
+    public void testRedeliveredBatchSkipsCheckpointedCalls() throws Exception {
+        LocalCheckpointStore checkpointStore = new LocalCheckpointStore();
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.checkpointStore = checkpointStore;
+        Call userUpdateCall = createCallMockWithSuccessResponse();
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+        Call successfulTrackCall = createCallMockWithSuccessResponse();
+        Call throttledTrackCall = Mockito.mock(Call.class);
+        Mockito.when(throttledTrackCall.execute()).thenReturn(createErrorResponse(429, "RateLimitExceeded"));
+        Mockito.when(throttledTrackCall.request()).thenReturn(new Request.Builder()
+                .url("https://api.iterable.com/api/events/track")
+                .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), "{}"))
+                .build());
+        Call retriedTrackCall = createCallMockWithSuccessResponse();
+        Mockito.when(iterableServiceMock.track(Mockito.any(), Mockito.any()))
+                .thenReturn(successfulTrackCall, throttledTrackCall, retriedTrackCall);
+
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.setUserIdentities(userIdentitiesWithEmail);
+        List<Event> events = new LinkedList<>();
+        for (int i = 0; i < 2; i++) {
+            CustomEvent event = new CustomEvent();
+            event.setName("Event " + i);
+            event.setTimestamp(i);
+            event.setRequest(request);
+            events.add(event);
+        }
+        request.setEvents(events);
+
+        try {
+            testExtension.processEventProcessingRequest(request);
+            fail("Expected a RetriableError");
+        } catch (RetriableError e) {
+            // The second event was throttled, so SQS would redeliver the batch
+        }
+        assertEquals(2, checkpointStore.completedKeys.size());
+
+        testExtension.processEventProcessingRequest(request);
+
+        Mockito.verify(userUpdateCall, times(1)).execute();
+        Mockito.verify(successfulTrackCall, times(1)).execute();
+        Mockito.verify(retriedTrackCall, times(1)).execute();
+        assertEquals(3, checkpointStore.completedKeys.size());
+    }
+
+    @Test
+    public void testConcurrentCallsAreCheckpointedWhenALaterEventFails() throws Exception {
+        LocalCheckpointStore checkpointStore = new LocalCheckpointStore();
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.checkpointStore = checkpointStore;
+        testExtension.concurrentRequestsEnabled = true;
+        Call userUpdateCall = createCallMockWithSuccessResponse();
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+        Call successfulTrackCall = createCallMockWithSuccessResponse();
+        Mockito.when(iterableServiceMock.track(Mockito.any(), Mockito.any()))
+                .thenReturn(successfulTrackCall)
+                .thenThrow(new IllegalStateException("Unable to build the request"));
+
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.setUserIdentities(userIdentitiesWithEmail);
+        List<Event> events = new LinkedList<>();
+        for (int i = 0; i < 2; i++) {
+            CustomEvent event = new CustomEvent();
+            event.setName("Event " + i);
+            event.setTimestamp(i);
+            event.setRequest(request);
+            events.add(event);
+        }
+        request.setEvents(events);
+
+        try {
+            testExtension.processEventProcessingRequest(request);
+            fail("Expected the second event to fail the request");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // The first event was already in flight, and Iterable accepted it
+        Mockito.verify(successfulTrackCall, times(1)).execute();
+        assertEquals(2, checkpointStore.completedKeys.size());
+    }
+
+    /**
+     * Stands in for a shared checkpoint table.
+     */
+    private static class LocalCheckpointStore implements CheckpointStore {
+        final Set<String> completedKeys = Collections.synchronizedSet(new HashSet<>());
+
+        @Override
+        public boolean isCompleted(String key) {
+            return completedKeys.contains(key);
+        }
+
+        @Override
+        public void markCompleted(String key) {
+            completedKeys.add(key);
+        }
+    }
+
+    @Test
+    public void testProcessEventProcessingRequestWithBulkTrack() throws Exception {
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.bulkTrackEnabled = true;
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(createCallMockWithSuccessResponse());
+        TrackBulkResponse bulkResponse = new TrackBulkResponse();
+        bulkResponse.successCount = 3;
+        bulkResponse.failCount = 0;
+        Call bulkCall = Mockito.mock(Call.class);
+        Mockito.when(bulkCall.execute()).thenReturn(Response.success(bulkResponse));
+        Mockito.when(iterableServiceMock.trackBulk(Mockito.any(), Mockito.any())).thenReturn(bulkCall);
+
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.setUserIdentities(userIdentitiesWithEmail);
+        List<Event> events = new LinkedList<>();
+        for (int i = 0; i < 3; i++) {
+            CustomEvent event = new CustomEvent();
+            event.setName("Bulk Event " + i);
+            event.setTimestamp(i);
+            event.setRequest(request);
+            events.add(event);
+        }
+        request.setEvents(events);
+
+        testExtension.processEventProcessingRequest(request);
+
+        ArgumentCaptor<TrackBulkRequest> bulkArgs = ArgumentCaptor.forClass(TrackBulkRequest.class);
+        Mockito.verify(iterableServiceMock, never()).track(Mockito.any(), Mockito.any());
+        Mockito.verify(iterableServiceMock, times(1)).trackBulk(Mockito.eq(TEST_API_KEY), bulkArgs.capture());
+        assertEquals(3, bulkArgs.getValue().events.size());
+        assertEquals("Bulk Event 0", bulkArgs.getValue().events.get(0).getEventName());
+        assertEquals("email_only@iterable.com", bulkArgs.getValue().events.get(0).email);
+    }
+
+    @Test
+    public void testBufferedEventsFollowEmailRename() throws Exception {
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.bulkTrackEnabled = true;
+        testExtension.triggerTrackBuffer = new TrackBulkBuffer();
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(createCallMockWithSuccessResponse());
+        Mockito.when(iterableServiceMock.updateEmail(Mockito.any(), Mockito.any())).thenReturn(createCallMockWithSuccessResponse());
+        TrackBulkResponse bulkResponse = new TrackBulkResponse();
+        bulkResponse.successCount = 1;
+        bulkResponse.failCount = 0;
+        Call bulkCall = Mockito.mock(Call.class);
+        Mockito.when(bulkCall.execute()).thenReturn(Response.success(bulkResponse));
+        Mockito.when(iterableServiceMock.trackBulk(Mockito.any(), Mockito.any())).thenReturn(bulkCall);
+
+        // The first record tracks an event for the old email
+        EventProcessingRequest first = createEventProcessingRequest();
+        first.setUserIdentities(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "old@iterable.com")));
+        CustomEvent event = new CustomEvent();
+        event.setName("Before Rename");
+        event.setRequest(first);
+        first.setEvents(new LinkedList<>(Collections.singletonList(event)));
+        testExtension.processEventProcessingRequest(first);
+
+        // The second record renames the user
+        EventProcessingRequest second = createEventProcessingRequest();
+        second.setUserIdentities(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "new@iterable.com")));
+        UserIdentityChangeEvent emailChanged = new UserIdentityChangeEvent();
+        emailChanged.setAdded(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "new@iterable.com")));
+        emailChanged.setRemoved(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "old@iterable.com")));
+        emailChanged.setRequest(second);
+        second.setEvents(new LinkedList<>(Collections.singletonList(emailChanged)));
+        testExtension.processEventProcessingRequest(second);
+
+        testExtension.flushTrackBulk(testExtension.triggerTrackBuffer);
+
+        // Tracking the event for the old email after the rename would recreate its profile
+        ArgumentCaptor<TrackBulkRequest> bulkArgs = ArgumentCaptor.forClass(TrackBulkRequest.class);
+        Mockito.verify(iterableServiceMock).trackBulk(Mockito.eq(TEST_API_KEY), bulkArgs.capture());
+        assertEquals(1, bulkArgs.getValue().events.size());
+        assertEquals("Before Rename", bulkArgs.getValue().events.get(0).getEventName());
+        assertEquals("new@iterable.com", bulkArgs.getValue().events.get(0).email);
+    }
+
+    @Test
+    public void testHandleIterableBulkResponseMapsFailuresToEvents() throws Exception {
+        TrackBulkBuffer buffer = new TrackBulkBuffer();
+        TrackRequest validRequest = new TrackRequest("Valid Event");
+        validRequest.email = "valid@iterable.com";
+        TrackRequest invalidRequest = new TrackRequest("Invalid Event");
+        invalidRequest.email = "invalid@iterable.com";
+        UUID validEventId = UUID.randomUUID();
+        UUID invalidEventId = UUID.randomUUID();
+        buffer.add(TEST_API_KEY, validRequest, validEventId);
+        buffer.add(TEST_API_KEY, invalidRequest, invalidEventId);
+        TrackBulkBuffer.Chunk chunk = buffer.drainChunks().get(0);
+
+        TrackBulkResponse bulkResponse = new TrackBulkResponse();
+        bulkResponse.successCount = 1;
+        bulkResponse.failCount = 1;
+        bulkResponse.invalidEmails = Collections.singletonList("invalid@iterable.com");
+        Call call = testExtension.iterableService.trackBulk(TEST_API_KEY, new TrackBulkRequest());
+
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(outContent));
+        try {
+            testExtension.handleIterableBulkResponse(call, Response.success(bulkResponse), chunk);
+        } finally {
+            System.setOut(originalOut);
+        }
+        assertTrue(outContent.toString().contains(invalidEventId.toString()));
+        assertFalse(outContent.toString().contains(validEventId.toString()));
+    }
+
+    @Test(expected = RetriableError.class)
+    public void testHandleIterableBulkResponseWith429() throws Exception {
+        TrackBulkBuffer buffer = new TrackBulkBuffer();
+        buffer.add(TEST_API_KEY, new TrackRequest("Event"), UUID.randomUUID());
+        Call call = testExtension.iterableService.trackBulk(TEST_API_KEY, new TrackBulkRequest());
+        testExtension.handleIterableBulkResponse(call, createErrorResponse(429, "RateLimitExceeded"),
+                buffer.drainChunks().get(0));
+    }
+
     @Test
     public void testUpdateUser() throws Exception {
         testExtension.iterableService = Mockito.mock(IterableService.class);
@@ -175,6 +469,236 @@ public class IterableExtensionTest {
         assertEquals(argument.getValue().dataFields.get("some attribute key"), "some attribute value");
     }
 
+    @Test
+    public void testUpdateUserSkipsUnchangedProfiles() throws Exception {
+        Call userUpdateCall = createCallMockWithSuccessResponse();
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.userProfileCache = new UserProfileCache();
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.setUserIdentities(userIdentitiesWithEmail);
+        Map<String, String> userAttributes = new HashMap<>();
+        userAttributes.put("plan", "premium");
+        request.setUserAttributes(userAttributes);
+
+        testExtension.updateUser(request);
+        testExtension.updateUser(request);
+        Mockito.verify(iterableServiceMock, times(1)).userUpdate(Mockito.any(), Mockito.any());
+
+        userAttributes.put("plan", "basic");
+        testExtension.updateUser(request);
+        Mockito.verify(iterableServiceMock, times(2)).userUpdate(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void testUpdateUserDoesNotSkipRevertOfBufferedUpdate() throws Exception {
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.userProfileCache = new UserProfileCache();
+        testExtension.bulkTrackEnabled = true;
+        testExtension.triggerTrackBuffer = new TrackBulkBuffer();
+        testExtension.triggerUserUpdateBuffer = new BulkUserUpdateBuffer();
+        Call userUpdateCall = createCallMockWithSuccessResponse();
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+        BulkUserUpdateResponse bulkResponse = new BulkUserUpdateResponse();
+        bulkResponse.successCount = 1;
+        bulkResponse.failCount = 0;
+        Call bulkCall = Mockito.mock(Call.class);
+        Mockito.when(bulkCall.execute()).thenReturn(Response.success(bulkResponse));
+        Mockito.when(bulkCall.request()).thenReturn(new Request.Builder().url("https://api.iterable.com/api/users/bulkUpdate").build());
+        Mockito.when(iterableServiceMock.bulkUserUpdate(Mockito.any(), Mockito.any())).thenReturn(bulkCall);
+
+        // The first record has a purchase, so its update is sent right away and cached
+        EventProcessingRequest first = createEventProcessingRequest();
+        first.setUserIdentities(userIdentitiesWithEmail);
+        first.setUserAttributes(Collections.singletonMap("plan", "gold"));
+        first.setTimestamp(100);
+        ProductActionEvent purchase = new ProductActionEvent();
+        purchase.setAction(ProductActionEvent.Action.PURCHASE);
+        first.setEvents(Collections.singletonList(purchase));
+        testExtension.updateUser(first);
+        Mockito.verify(iterableServiceMock).userUpdate(Mockito.any(), Mockito.any());
+
+        // The second record changes the plan and is buffered
+        EventProcessingRequest second = createEventProcessingRequest();
+        second.setUserIdentities(userIdentitiesWithEmail);
+        second.setUserAttributes(Collections.singletonMap("plan", "silver"));
+        second.setTimestamp(200);
+        testExtension.updateUser(second);
+
+        // The third record changes it back, which has to be sent even though it matches the first
+        EventProcessingRequest third = createEventProcessingRequest();
+        third.setUserIdentities(userIdentitiesWithEmail);
+        third.setUserAttributes(Collections.singletonMap("plan", "gold"));
+        third.setTimestamp(300);
+        testExtension.updateUser(third);
+
+        testExtension.flushBulkUserUpdates(testExtension.triggerUserUpdateBuffer);
+        ArgumentCaptor<BulkUserUpdateRequest> bulkArgs = ArgumentCaptor.forClass(BulkUserUpdateRequest.class);
+        Mockito.verify(iterableServiceMock).bulkUserUpdate(Mockito.eq(TEST_API_KEY), bulkArgs.capture());
+        assertEquals("gold", bulkArgs.getValue().users.get(0).dataFields.get("plan"));
+
+        // What the third record said is cached once the bulk update is accepted
+        EventProcessingRequest fourth = createEventProcessingRequest();
+        fourth.setUserIdentities(userIdentitiesWithEmail);
+        fourth.setUserAttributes(Collections.singletonMap("plan", "gold"));
+        fourth.setTimestamp(400);
+        testExtension.updateUser(fourth);
+        assertTrue(testExtension.triggerUserUpdateBuffer.isEmpty());
+    }
+
+    @Test
+    public void testUpdateUserWithBulkUserUpdateBuffer() throws Exception {
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.bulkTrackEnabled = true;
+        testExtension.triggerTrackBuffer = new TrackBulkBuffer();
+        testExtension.triggerUserUpdateBuffer = new BulkUserUpdateBuffer();
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.setUserIdentities(userIdentitiesWithEmail);
+        Map<String, String> userAttributes = new HashMap<>();
+        userAttributes.put("some attribute key", "some attribute value");
+        request.setUserAttributes(userAttributes);
+
+        testExtension.updateUser(request);
+        Mockito.verify(iterableServiceMock, never()).userUpdate(Mockito.any(), Mockito.any());
+
+        BulkUserUpdateResponse bulkResponse = new BulkUserUpdateResponse();
+        bulkResponse.successCount = 1;
+        bulkResponse.failCount = 0;
+        Call bulkCall = Mockito.mock(Call.class);
+        Mockito.when(bulkCall.execute()).thenReturn(Response.success(bulkResponse));
+        Mockito.when(iterableServiceMock.bulkUserUpdate(Mockito.any(), Mockito.any())).thenReturn(bulkCall);
+
+        Set<String> failedSources = testExtension.flushBulkUserUpdates(testExtension.triggerUserUpdateBuffer);
+
+        assertTrue(failedSources.isEmpty());
+        ArgumentCaptor<BulkUserUpdateRequest> bulkArgs = ArgumentCaptor.forClass(BulkUserUpdateRequest.class);
+        Mockito.verify(iterableServiceMock).bulkUserUpdate(Mockito.eq(TEST_API_KEY), bulkArgs.capture());
+        assertEquals(1, bulkArgs.getValue().users.size());
+        assertEquals("email_only@iterable.com", bulkArgs.getValue().users.get(0).email);
+        assertEquals("some attribute value", bulkArgs.getValue().users.get(0).dataFields.get("some attribute key"));
+    }
+
+    @Test
+    public void testBufferedUserUpdateFollowsEmailRename() throws Exception {
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.bulkTrackEnabled = true;
+        testExtension.triggerTrackBuffer = new TrackBulkBuffer();
+        testExtension.triggerUserUpdateBuffer = new BulkUserUpdateBuffer();
+        Call updateEmailCall = createCallMockWithSuccessResponse();
+        Mockito.when(iterableServiceMock.updateEmail(Mockito.any(), Mockito.any())).thenReturn(updateEmailCall);
+
+        // The first record updates the user under their old email
+        EventProcessingRequest first = createEventProcessingRequest();
+        first.setUserIdentities(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "old@iterable.com")));
+        Map<String, String> firstAttributes = new HashMap<>();
+        firstAttributes.put("plan", "gold");
+        first.setUserAttributes(firstAttributes);
+        first.setTimestamp(100);
+        testExtension.updateUser(first);
+
+        // The second record renames them
+        EventProcessingRequest second = createEventProcessingRequest();
+        second.setUserIdentities(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "new@iterable.com")));
+        UserIdentityChangeEvent emailChanged = new UserIdentityChangeEvent();
+        emailChanged.setAdded(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "new@iterable.com")));
+        emailChanged.setRemoved(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "old@iterable.com")));
+        second.setEvents(Collections.singletonList(emailChanged));
+        Map<String, String> secondAttributes = new HashMap<>();
+        secondAttributes.put("city", "Boston");
+        second.setUserAttributes(secondAttributes);
+        second.setTimestamp(200);
+        testExtension.updateUser(second);
+
+        Mockito.verify(iterableServiceMock).updateEmail(Mockito.eq(TEST_API_KEY), Mockito.any());
+        BulkUserUpdateResponse bulkResponse = new BulkUserUpdateResponse();
+        bulkResponse.successCount = 1;
+        bulkResponse.failCount = 0;
+        Call bulkCall = Mockito.mock(Call.class);
+        Mockito.when(bulkCall.execute()).thenReturn(Response.success(bulkResponse));
+        Mockito.when(iterableServiceMock.bulkUserUpdate(Mockito.any(), Mockito.any())).thenReturn(bulkCall);
+
+        testExtension.flushBulkUserUpdates(testExtension.triggerUserUpdateBuffer);
+
+        // Nothing may be sent for the old email once it's been renamed, or Iterable recreates it
+        ArgumentCaptor<BulkUserUpdateRequest> bulkArgs = ArgumentCaptor.forClass(BulkUserUpdateRequest.class);
+        Mockito.verify(iterableServiceMock).bulkUserUpdate(Mockito.eq(TEST_API_KEY), bulkArgs.capture());
+        assertEquals(1, bulkArgs.getValue().users.size());
+        UserUpdateRequest user = bulkArgs.getValue().users.get(0);
+        assertEquals("new@iterable.com", user.email);
+        assertEquals("gold", user.dataFields.get("plan"));
+        assertEquals("Boston", user.dataFields.get("city"));
+    }
+
+    @Test
+    public void testUserUpdateIsNotDeferredPastEvents() throws Exception {
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.bulkTrackEnabled = true;
+        testExtension.triggerUserUpdateBuffer = new BulkUserUpdateBuffer();
+        Call userUpdateCall = createCallMockWithSuccessResponse();
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.setUserIdentities(userIdentitiesWithEmail);
+
+        // Events are sent per request without a trigger track buffer
+        testExtension.updateUser(request);
+        Mockito.verify(iterableServiceMock, times(1)).userUpdate(Mockito.any(), Mockito.any());
+
+        // Purchases are always sent right away
+        testExtension.triggerTrackBuffer = new TrackBulkBuffer();
+        ProductActionEvent purchase = new ProductActionEvent();
+        purchase.setAction(ProductActionEvent.Action.PURCHASE);
+        request.setEvents(Collections.singletonList(purchase));
+        testExtension.updateUser(request);
+        Mockito.verify(iterableServiceMock, times(2)).userUpdate(Mockito.any(), Mockito.any());
+        assertTrue(testExtension.triggerUserUpdateBuffer.isEmpty());
+    }
+
+    @Test
+    public void testImmediateUserUpdateIncludesBufferedUpdate() throws Exception {
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.bulkTrackEnabled = true;
+        testExtension.triggerTrackBuffer = new TrackBulkBuffer();
+        testExtension.triggerUserUpdateBuffer = new BulkUserUpdateBuffer();
+        Call userUpdateCall = createCallMockWithSuccessResponse();
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+
+        // The first record only has custom events, so its update is buffered
+        EventProcessingRequest first = createEventProcessingRequest();
+        first.setUserIdentities(userIdentitiesWithEmail);
+        Map<String, String> firstAttributes = new HashMap<>();
+        firstAttributes.put("plan", "gold");
+        firstAttributes.put("city", "Boston");
+        first.setUserAttributes(firstAttributes);
+        first.setTimestamp(100);
+        testExtension.updateUser(first);
+        Mockito.verify(iterableServiceMock, never()).userUpdate(Mockito.any(), Mockito.any());
+
+        // The second record has a purchase, so its update is sent right away
+        EventProcessingRequest second = createEventProcessingRequest();
+        second.setUserIdentities(userIdentitiesWithEmail);
+        Map<String, String> secondAttributes = new HashMap<>();
+        secondAttributes.put("plan", "silver");
+        second.setUserAttributes(secondAttributes);
+        second.setTimestamp(200);
+        ProductActionEvent purchase = new ProductActionEvent();
+        purchase.setAction(ProductActionEvent.Action.PURCHASE);
+        second.setEvents(Collections.singletonList(purchase));
+        testExtension.updateUser(second);
+
+        // The buffered update goes out with it, rather than overwriting it at the end of the trigger
+        ArgumentCaptor<UserUpdateRequest> args = ArgumentCaptor.forClass(UserUpdateRequest.class);
+        Mockito.verify(iterableServiceMock).userUpdate(Mockito.eq(TEST_API_KEY), args.capture());
+        assertEquals("email_only@iterable.com", args.getValue().email);
+        assertEquals("silver", args.getValue().dataFields.get("plan"));
+        assertEquals("Boston", args.getValue().dataFields.get("city"));
+        assertTrue(testExtension.triggerUserUpdateBuffer.isEmpty());
+    }
+
     @Test
     public void testReservedAttributeConversion() throws IOException {
         testExtension.iterableService = iterableServiceMock;
@@ -592,6 +1116,50 @@ public class IterableExtensionTest {
         assertEquals(3, i);
     }
 
+    @Test
+    public void testProcessAudienceMembershipChangeRequestSendsPages() throws Exception {
+        testExtension.iterableService = iterableServiceMock;
+        testExtension.logger = Mockito.spy(testLogger);
+        testExtension.listPageSize = 2;
+        testExtension.listPageConcurrency = 2;
+        Call callMock = Mockito.mock(Call.class);
+        Mockito.when(iterableServiceMock.listSubscribe(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        ListResponse apiResponse = new ListResponse();
+        apiResponse.successCount = 1;
+        apiResponse.failCount = 1;
+        Mockito.when(callMock.execute()).thenReturn(Response.success(apiResponse));
+
+        List<UserProfile> profiles = new LinkedList<>();
+        for (int i = 0; i < 5; i++) {
+            UserProfile profile = new UserProfile();
+            List<UserIdentity> identities = new LinkedList<>();
+            identities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "user" + i + "@iterable.com"));
+            profile.setUserIdentities(identities);
+            profile.setAudiences(Collections.singletonList(testAudienceAddition1));
+            profiles.add(profile);
+        }
+        AudienceMembershipChangeRequest request = new AudienceMembershipChangeRequest();
+        request.setAccount(testAccount);
+        request.setUserProfiles(profiles);
+
+        testExtension.processAudienceMembershipChangeRequest(request);
+
+        ArgumentCaptor<SubscribeRequest> subscribeArgs = ArgumentCaptor.forClass(SubscribeRequest.class);
+        Mockito.verify(iterableServiceMock, Mockito.times(3)).listSubscribe(Mockito.any(), subscribeArgs.capture());
+        List<String> subscribedEmails = new ArrayList<>();
+        for (SubscribeRequest subscribeRequest : subscribeArgs.getAllValues()) {
+            assertTrue(subscribeRequest.subscribers.size() <= 2);
+            for (ApiUser user : subscribeRequest.subscribers) {
+                subscribedEmails.add(user.email);
+            }
+        }
+        assertEquals(5, subscribedEmails.size());
+        assertEquals("user4@iterable.com", subscribedEmails.get(4));
+        Mockito.verify(testExtension.logger, times(1)).logMessage(
+                "List subscribe or unsubscribe request failed count: 3");
+    }
+
     @Test
     public void testProcessAudienceMembershipChangeWithMPID() throws IOException {
         testExtension.iterableService = iterableServiceMock;
@@ -757,6 +1325,43 @@ public class IterableExtensionTest {
         assertEquals(trackPurchaseRequest.id, event.getId().toString());
     }
 
+    @Test
+    public void testPurchasesShareConvertedUserAttributes() throws Exception {
+        Call userUpdateCall = createCallMockWithSuccessResponse();
+        Call purchaseCall = createCallMockWithSuccessResponse();
+        testExtension.iterableService = iterableServiceMock;
+        Mockito.when(iterableServiceMock.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+        Mockito.when(iterableServiceMock.trackPurchase(Mockito.any(), Mockito.any())).thenReturn(purchaseCall);
+
+        EventProcessingRequest request = createEventProcessingRequest();
+        request.getAccount().getAccountSettings().put(SETTING_COERCE_STRINGS_TO_SCALARS, "True");
+        request.setUserIdentities(userIdentitiesWithEmail);
+        Map<String, String> userAttributes = new HashMap<>();
+        userAttributes.put("orders", "17");
+        request.setUserAttributes(userAttributes);
+        List<Event> events = new LinkedList<>();
+        for (int i = 0; i < 2; i++) {
+            ProductActionEvent event = new ProductActionEvent();
+            event.setAction(ProductActionEvent.Action.PURCHASE);
+            event.setTimestamp(i);
+            event.setRequest(request);
+            events.add(event);
+        }
+        request.setEvents(events);
+
+        testExtension.processEventProcessingRequest(request);
+
+        ArgumentCaptor<UserUpdateRequest> userUpdateArgs = ArgumentCaptor.forClass(UserUpdateRequest.class);
+        Mockito.verify(iterableServiceMock).userUpdate(Mockito.any(), userUpdateArgs.capture());
+        ArgumentCaptor<TrackPurchaseRequest> purchaseArgs = ArgumentCaptor.forClass(TrackPurchaseRequest.class);
+        Mockito.verify(iterableServiceMock, times(2)).trackPurchase(Mockito.any(), purchaseArgs.capture());
+        Map<String, Object> dataFields = userUpdateArgs.getValue().dataFields;
+        assertEquals(17, dataFields.get("orders"));
+        for (TrackPurchaseRequest purchaseRequest : purchaseArgs.getAllValues()) {
+            assertSame("User attributes should be converted once per request", dataFields, purchaseRequest.user.dataFields);
+        }
+    }
+
     @Test
     public void testGetPlaceholderEmailNoEnvironmentOrStamp() {
         EventProcessingRequest request = createEventProcessingRequest();
@@ -1036,6 +1641,58 @@ public class IterableExtensionTest {
         testExtension.makeIterableRequest(call, UUID.randomUUID());
     }
 
+    @Test(expected = RetriableError.class)
+    public void testMakeIterableRequestWhenRateLimitedThrowsRetriableError() throws IOException {
+        Call call = Mockito.mock(Call.class);
+        HttpUrl url = new HttpUrl.Builder()
+                .scheme("https")
+                .host("api.iterable.com")
+                .addEncodedPathSegment("/api/events/track")
+                .build();
+        Request request = new Request.Builder()
+                .method("POST", RequestBody.create(MediaType.parse("application/json; charset=utf-8"), "{}"))
+                .url(url)
+                .build();
+        Mockito.when(call.request()).thenReturn(request);
+        Mockito.when(call.execute()).thenThrow(new RateLimitedException("Client-side rate limit reached", 1000));
+
+        testExtension.makeIterableRequest(call, UUID.randomUUID());
+    }
+
+    @Test
+    public void testMakeIterableRequestFailsFastWhenCircuitBreakerIsOpen() throws IOException {
+        testExtension.circuitBreakerEnabled = true;
+        Call call = Mockito.mock(Call.class);
+        HttpUrl url = new HttpUrl.Builder()
+                .scheme("https")
+                .host("api.iterable.com")
+                .addEncodedPathSegment("/api/test/circuitBreaker")
+                .build();
+        Request request = new Request.Builder()
+                .method("POST", RequestBody.create(MediaType.parse("application/json; charset=utf-8"), "{}"))
+                .url(url)
+                .build();
+        Mockito.when(call.request()).thenReturn(request);
+        Mockito.when(call.execute()).thenThrow(java.net.SocketTimeoutException.class);
+
+        for (int i = 0; i < CircuitBreaker.MIN_CALLS; i++) {
+            try {
+                testExtension.makeIterableRequest(call, UUID.randomUUID());
+                fail("Expected a RetriableError");
+            } catch (RetriableError e) {
+                // expected
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, CircuitBreaker.forPath(url.encodedPath()).getState());
+        try {
+            testExtension.makeIterableRequest(call, UUID.randomUUID());
+            fail("Expected a RetriableError");
+        } catch (RetriableError e) {
+            // expected
+        }
+        Mockito.verify(call, times(CircuitBreaker.MIN_CALLS)).execute();
+    }
+
     private EventProcessingRequest createEventProcessingRequest() {
         EventProcessingRequest request = new EventProcessingRequest();
         Account account = new Account();
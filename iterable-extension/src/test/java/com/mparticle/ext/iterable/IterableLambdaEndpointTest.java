@@ -1,27 +1,324 @@
 package com.mparticle.ext.iterable;
 
+import com.amazonaws.services.lambda.runtime.Context;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mparticle.iterable.IterableService;
+import com.mparticle.iterable.TrackRequest;
+import com.mparticle.iterable.UserUpdateRequest;
 import com.mparticle.sdk.model.Message;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
+import org.mockito.Mockito;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class IterableLambdaEndpointTest {
   static IterableLambdaEndpoint lambda = new IterableLambdaEndpoint();
+  private static final ObjectMapper mapper = new ObjectMapper();
   private static final String PATH_TO_FIXTURES = "src/test/resources/";
 
   @Test
   public void testParseQueueTrigger() throws IOException {
     String inputString = IOUtils.toString(readTestFixture("queueTrigger.json"), "UTF-8");
-    Message request = lambda.parseQueueTrigger(inputString);
+    QueueTrigger trigger = lambda.parseQueueTrigger(inputString);
+    assertEquals(1, trigger.records.size());
+    assertEquals("128d4022-5e6d-4997-a628-cbb49462ca82", trigger.records.get(0).messageId);
+    Message request = lambda.parseQueueMessage(trigger.records.get(0));
     assertEquals(Message.Type.EVENT_PROCESSING_REQUEST, request.getType());
   }
 
+  @Test
+  public void testHandleRequestReportsOnlyRetriableRecords() throws Exception {
+    QueueTrigger trigger = lambda.parseQueueTrigger(
+        IOUtils.toString(readTestFixture("queueTrigger.json"), "UTF-8"));
+    QueueMessageBody healthyRecord = trigger.records.get(0);
+    QueueMessageBody failingRecord = new QueueMessageBody();
+    failingRecord.messageId = "failing-message-id";
+    failingRecord.body = healthyRecord.body.replace("example1@iterable.com", "example2@iterable.com");
+    trigger.records.add(failingRecord);
+
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        if (request.getBody().readUtf8().contains("example2@iterable.com")) {
+          return new MockResponse().setResponseCode(429).setBody("{}");
+        }
+        return new MockResponse().setBody("{\"code\":\"Success\"}");
+      }
+    });
+    server.start();
+    try {
+      IterableService service = IterableService.newInstance(server.url("/"), IterableService.newHttpClient());
+      IterableLambdaEndpoint endpoint = new IterableLambdaEndpoint(service, Mockito.mock(BlobbyClient.class));
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      endpoint.handleRequest(new ByteArrayInputStream(mapper.writeValueAsBytes(trigger)), output, createContextMock());
+
+      QueueTriggerResponse response = mapper.readValue(output.toByteArray(), QueueTriggerResponse.class);
+      assertEquals(1, response.batchItemFailures.size());
+      assertEquals("failing-message-id", response.batchItemFailures.get(0).itemIdentifier);
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testHandleRequestReusesConnectionAcrossInvocations() throws Exception {
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setBody("{\"code\":\"Success\"}");
+      }
+    });
+    server.start();
+    try {
+      IterableService service = IterableService.newInstance(server.url("/"), IterableService.newHttpClient());
+      IterableLambdaEndpoint endpoint = new IterableLambdaEndpoint(service, Mockito.mock(BlobbyClient.class));
+      Context context = createContextMock();
+
+      endpoint.handleRequest(readTestFixture("queueTrigger.json"), new ByteArrayOutputStream(), context);
+      int firstInvocationRequestCount = server.getRequestCount();
+      assertTrue(firstInvocationRequestCount > 0);
+      endpoint.handleRequest(readTestFixture("queueTrigger.json"), new ByteArrayOutputStream(), context);
+      int totalRequestCount = server.getRequestCount();
+      assertEquals(firstInvocationRequestCount * 2, totalRequestCount);
+
+      RecordedRequest lastRequest = null;
+      for (int i = 0; i < totalRequestCount; i++) {
+        lastRequest = server.takeRequest();
+      }
+      assertEquals("Every request should have been sent over the same pooled connection",
+          totalRequestCount - 1, lastRequest.getSequenceNumber());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testStreamQueueTrigger() throws IOException {
+    byte[] trigger = ("{\"Other\":{\"Records\":[]},\"Records\":["
+        + "{\"messageId\":\"first\",\"body\":\"{}\",\"md5OfBody\":\"99914b932bd37a50b983c5e7c90ae93b\"},"
+        + "{\"messageId\":\"second\",\"body\":\"[]\"}]}").getBytes(StandardCharsets.UTF_8);
+
+    try (JsonParser parser = IterableLambdaEndpoint.openQueueTrigger(new ByteArrayInputStream(trigger))) {
+      assertEquals("first", IterableLambdaEndpoint.nextQueueMessage(parser).messageId);
+      QueueMessageBody second = IterableLambdaEndpoint.nextQueueMessage(parser);
+      assertEquals("second", second.messageId);
+      assertEquals("[]", second.body);
+      assertNull(IterableLambdaEndpoint.nextQueueMessage(parser));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testStreamQueueTriggerWithoutRecords() throws IOException {
+    IterableLambdaEndpoint.openQueueTrigger(new ByteArrayInputStream("{\"records\":[]}".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testHandleRequestLogsMalformedTrigger() throws Exception {
+    String trigger = IOUtils.toString(readTestFixture("queueTrigger.json"), "UTF-8");
+    // Cut off in the middle of the first record, so no record is processed
+    String truncatedTrigger = trigger.substring(0, trigger.indexOf("\"body\""));
+    List<String> blobbyPayloads = Collections.synchronizedList(new ArrayList<>());
+    IterableLambdaEndpoint endpoint = new IterableLambdaEndpoint(Mockito.mock(IterableService.class), new BlobbyClient() {
+      @Override
+      public String log(String msg) {
+        blobbyPayloads.add(msg);
+        return "blobby id";
+      }
+    });
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    try {
+      endpoint.handleRequest(new ByteArrayInputStream(truncatedTrigger.getBytes(StandardCharsets.UTF_8)), output,
+          createContextMock());
+      fail("A malformed trigger should fail the invocation");
+    } catch (IOException e) {
+      // expected
+    }
+
+    assertEquals(0, output.size());
+    assertEquals(1, blobbyPayloads.size());
+    JsonNode batches = mapper.readTree(blobbyPayloads.get(0)).get("mParticleBatches");
+    assertEquals(truncatedTrigger, batches.get(0).asText());
+  }
+
+  @Test
+  public void testTriggerTruncatedAfterFirstRecordIsRedelivered() throws Exception {
+    QueueTrigger trigger = lambda.parseQueueTrigger(
+        IOUtils.toString(readTestFixture("queueTrigger.json"), "UTF-8"));
+    QueueMessageBody secondRecord = new QueueMessageBody();
+    secondRecord.messageId = "second-message-id";
+    secondRecord.body = trigger.records.get(0).body;
+    trigger.records.add(secondRecord);
+    String fullTrigger = mapper.writeValueAsString(trigger);
+    // Cut off in the middle of the second record, after the first one is complete
+    String truncatedTrigger = fullTrigger.substring(0, fullTrigger.indexOf("second-message-id"));
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setBody("{\"code\":\"Success\"}");
+      }
+    });
+    server.start();
+    try {
+      IterableService service = IterableService.newInstance(server.url("/"), IterableService.newHttpClient());
+      IterableLambdaEndpoint endpoint = new IterableLambdaEndpoint(service, Mockito.mock(BlobbyClient.class));
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+      try {
+        endpoint.handleRequest(new ByteArrayInputStream(truncatedTrigger.getBytes(StandardCharsets.UTF_8)), output,
+            createContextMock());
+        fail("A trigger that can't be read to the end should fail the invocation so SQS redelivers it");
+      } catch (IOException e) {
+        // expected
+      }
+
+      assertTrue("The first record should still be processed", server.getRequestCount() > 0);
+      // Without a response there are no batchItemFailures, so SQS can't delete the unread record
+      assertEquals(0, output.size());
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testEventsOfFailedUserUpdateAreNotTracked() throws Exception {
+    MockWebServer server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        if (request.getPath().contains("bulkUpdate")) {
+          return new MockResponse().setResponseCode(429).setBody("{}");
+        }
+        return new MockResponse().setBody("{\"successCount\":1,\"failCount\":0}");
+      }
+    });
+    server.start();
+    try {
+      IterableService service = IterableService.newInstance(server.url("/"), IterableService.newHttpClient());
+      IterableExtension extension = new IterableExtension(
+          new IterableExtensionLogger("foo", Mockito.mock(BlobbyClient.class), false), service);
+      extension.triggerUserUpdateBuffer = new BulkUserUpdateBuffer();
+      extension.triggerTrackBuffer = new TrackBulkBuffer();
+      UserUpdateRequest userUpdate = new UserUpdateRequest();
+      userUpdate.email = "example1@iterable.com";
+      extension.triggerUserUpdateBuffer.setCurrentSource("failing-message-id");
+      extension.triggerUserUpdateBuffer.add("foo", userUpdate, UUID.randomUUID(), 1);
+      TrackRequest event = new TrackRequest("Event");
+      event.email = "example1@iterable.com";
+      extension.triggerTrackBuffer.setCurrentSource("failing-message-id");
+      extension.triggerTrackBuffer.add("foo", event, UUID.randomUUID());
+
+      assertEquals(Collections.singleton("failing-message-id"), IterableLambdaEndpoint.flushTriggerBuffers(extension));
+      // The events are tracked when the message is redelivered, after its user update
+      assertEquals(1, server.getRequestCount());
+      assertTrue(server.takeRequest().getPath().contains("bulkUpdate"));
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testPrime() {
+    assertTrue(lambda.prime());
+    assertTrue(IterableLambdaEndpoint.class.getResource(IterableLambdaEndpoint.PRIMING_TRIGGER_RESOURCE) != null);
+  }
+
+  @Test
+  public void testParseCompressedQueueMessage() throws IOException {
+    QueueTrigger trigger = lambda.parseQueueTrigger(
+        IOUtils.toString(readTestFixture("queueTrigger.json"), "UTF-8"));
+    QueueMessageBody record = trigger.records.get(0);
+    String body = record.body;
+    record.body = QueueMessageEncoding.gzipBase64(body);
+    record.messageAttributes = new HashMap<>();
+    record.messageAttributes.put(QueueMessageEncoding.CONTENT_ENCODING_ATTRIBUTE,
+        createAttribute(QueueMessageEncoding.GZIP_BASE64));
+
+    // Round trip through the SQS event format
+    QueueTrigger parsed = lambda.parseQueueTrigger(mapper.writeValueAsString(trigger));
+    assertEquals(body, IterableLambdaEndpoint.readQueueMessageBody(parsed.records.get(0), null));
+    assertEquals(Message.Type.EVENT_PROCESSING_REQUEST, lambda.parseQueueMessage(parsed.records.get(0)).getType());
+  }
+
+  @Test
+  public void testReadStoredQueueMessage() throws IOException {
+    String body = "{\"type\":\"event_processing_request\"}";
+    PayloadStore store = Mockito.mock(PayloadStore.class);
+    Mockito.when(store.get("payload key")).thenReturn(QueueMessageEncoding.gzipBase64(body).getBytes(StandardCharsets.UTF_8));
+    QueueMessageBody record = new QueueMessageBody();
+    record.body = "payload key";
+    record.messageAttributes = new HashMap<>();
+    record.messageAttributes.put(QueueMessageEncoding.PAYLOAD_KEY_ATTRIBUTE, createAttribute("payload key"));
+    record.messageAttributes.put(QueueMessageEncoding.CONTENT_ENCODING_ATTRIBUTE,
+        createAttribute(QueueMessageEncoding.GZIP_BASE64));
+
+    assertEquals(body, IterableLambdaEndpoint.readQueueMessageBody(record, store));
+
+    Mockito.when(store.get("payload key")).thenThrow(new IOException("S3 is unavailable"));
+    try {
+      IterableLambdaEndpoint.readQueueMessageBody(record, store);
+      fail("Payload store failures should be retried");
+    } catch (RetriableError e) {
+      // expected
+    }
+    try {
+      IterableLambdaEndpoint.readQueueMessageBody(record, null);
+      fail("Stored payloads can't be read without a payload store");
+    } catch (ProcessingError e) {
+      // expected
+    }
+  }
+
+  @Test(expected = ProcessingError.class)
+  public void testReadCorruptQueueMessage() throws IOException {
+    QueueMessageBody record = new QueueMessageBody();
+    record.body = "not gzip";
+    record.messageAttributes = new HashMap<>();
+    record.messageAttributes.put(QueueMessageEncoding.CONTENT_ENCODING_ATTRIBUTE,
+        createAttribute(QueueMessageEncoding.GZIP_BASE64));
+
+    IterableLambdaEndpoint.readQueueMessageBody(record, null);
+  }
+
+  private static QueueMessageAttribute createAttribute(String value) {
+    QueueMessageAttribute attribute = new QueueMessageAttribute();
+    attribute.dataType = "String";
+    attribute.stringValue = value;
+    return attribute;
+  }
+
+  private static Context createContextMock() {
+    Context context = Mockito.mock(Context.class);
+    Mockito.when(context.getAwsRequestId()).thenReturn("foo");
+    return context;
+  }
+
   private static InputStream readTestFixture(String fileName) throws IOException {
     File initialFile = new File(PATH_TO_FIXTURES + fileName);
     InputStream fixtureInputStream = new FileInputStream(initialFile);
@@ -0,0 +1,97 @@
+package com.mparticle.ext.iterable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class IterableMetricsTest {
+
+  private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+  private PrintStream originalStdout;
+
+  @Before
+  public void setUp() {
+    originalStdout = System.out;
+    System.setOut(new PrintStream(stdout, true));
+  }
+
+  @After
+  public void tearDown() {
+    System.setOut(originalStdout);
+  }
+
+  @Test
+  public void testLogMetricsWritesOneEmfDocument() {
+    IterableExtensionLogger logger = new IterableExtensionLogger("foo", new BlobbyClient(), false);
+    IterableMetrics metrics = new IterableMetrics();
+    logger.setMetrics(metrics);
+    metrics.recordBatch(Arrays.asList("CUSTOM_EVENT", "CUSTOM_EVENT", "PUSH_MESSAGE_OPEN"));
+    metrics.recordIterableCall("/api/events/track", "200", 2000000, 8000000);
+    metrics.recordIterableCall("/api/events/track", "500", 1000000, 3000000);
+    metrics.recordIterableRejection("/api/users/update", "RateLimited");
+
+    logger.logMetrics("iterable-function");
+
+    String[] lines = stdout.toString().trim().split("\n");
+    assertEquals(1, lines.length);
+    JsonObject document = new Gson().fromJson(lines[0], JsonObject.class);
+    assertEquals("iterable-function", document.get("FunctionName").getAsString());
+    JsonObject directive = document.getAsJsonObject("_aws").getAsJsonArray("CloudWatchMetrics")
+        .get(0).getAsJsonObject();
+    assertEquals(IterableMetrics.NAMESPACE, directive.get("Namespace").getAsString());
+    Set<String> definedMetrics = new HashSet<>();
+    for (int i = 0; i < directive.getAsJsonArray("Metrics").size(); i++) {
+      definedMetrics.add(directive.getAsJsonArray("Metrics").get(i).getAsJsonObject().get("Name").getAsString());
+    }
+    for (String name : definedMetrics) {
+      assertTrue(name, document.has(name));
+    }
+
+    JsonArray latencies = document.getAsJsonArray("IterableLatency.events/track");
+    assertEquals(2, latencies.size());
+    assertEquals(10.0, latencies.get(0).getAsDouble(), 0.001);
+    assertEquals(2.0, document.getAsJsonArray("IterableSerializationTime.events/track").get(0).getAsDouble(), 0.001);
+    assertEquals(8.0, document.getAsJsonArray("IterableNetworkTime.events/track").get(0).getAsDouble(), 0.001);
+    assertEquals(2, document.get("IterableCalls.events/track").getAsLong());
+    assertEquals(1, document.get("IterableStatus.200.events/track").getAsLong());
+    assertEquals(1, document.get("IterableStatus.500.events/track").getAsLong());
+    assertEquals(1, document.get("IterableStatus.RateLimited.users/update").getAsLong());
+    assertEquals(3.0, document.getAsJsonArray("BatchSize").get(0).getAsDouble(), 0.001);
+    assertEquals(2, document.get("Events.CUSTOM_EVENT").getAsLong());
+    assertEquals(1, document.get("Events.PUSH_MESSAGE_OPEN").getAsLong());
+  }
+
+  @Test
+  public void testLogMetricsSkipsEmptyMetrics() {
+    IterableExtensionLogger logger = new IterableExtensionLogger("foo", new BlobbyClient(), false);
+    logger.logMetrics("iterable-function");
+    logger.setMetrics(new IterableMetrics());
+    logger.logMetrics("iterable-function");
+
+    assertEquals("", stdout.toString());
+  }
+
+  @Test
+  public void testSamplesAreCapped() {
+    IterableMetrics metrics = new IterableMetrics();
+    for (int i = 0; i < 1000; i++) {
+      metrics.recordIterableCall("/api/events/track", "200", 0, i * 1000000L);
+    }
+
+    JsonObject document = new Gson().fromJson(metrics.toEmfDocument(0, "local"), JsonObject.class);
+    assertEquals(IterableMetrics.MAX_VALUES_PER_METRIC,
+        document.getAsJsonArray("IterableLatency.events/track").size());
+    assertEquals(1000, document.get("IterableCalls.events/track").getAsLong());
+  }
+}
@@ -0,0 +1,67 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScalarClassifierTest {
+
+  @Test
+  public void testCoerceBooleans() {
+    assertEquals(Boolean.TRUE, ScalarClassifier.coerce("true"));
+    assertEquals(Boolean.TRUE, ScalarClassifier.coerce("True"));
+    assertEquals(Boolean.FALSE, ScalarClassifier.coerce("FALSE"));
+    assertEquals("trueish", ScalarClassifier.coerce("trueish"));
+    assertEquals("f", ScalarClassifier.coerce("f"));
+  }
+
+  @Test
+  public void testCoerceIntegers() {
+    assertEquals(123, ScalarClassifier.coerce("123"));
+    assertEquals(-7, ScalarClassifier.coerce("-7"));
+    assertEquals(5, ScalarClassifier.coerce("+5"));
+    assertEquals(7, ScalarClassifier.coerce("007"));
+    assertEquals(Integer.MAX_VALUE, ScalarClassifier.coerce("2147483647"));
+    assertEquals(Integer.MIN_VALUE, ScalarClassifier.coerce("-2147483648"));
+  }
+
+  @Test
+  public void testCoerceLongs() {
+    assertEquals(2147483648L, ScalarClassifier.coerce("2147483648"));
+    assertEquals(1507657706679L, ScalarClassifier.coerce("1507657706679"));
+    assertEquals(Long.MAX_VALUE, ScalarClassifier.coerce("9223372036854775807"));
+    assertEquals(Long.MIN_VALUE, ScalarClassifier.coerce("-9223372036854775808"));
+    assertEquals("9223372036854775808", ScalarClassifier.coerce("9223372036854775808"));
+    assertEquals("-9223372036854775809", ScalarClassifier.coerce("-9223372036854775809"));
+  }
+
+  @Test
+  public void testCoerceDoubles() {
+    assertEquals(1.5, ScalarClassifier.coerce("1.5"));
+    assertEquals(-0.25, ScalarClassifier.coerce("-.25"));
+    assertEquals(0.001, ScalarClassifier.coerce("1E-3"));
+    assertEquals(1.0E10, ScalarClassifier.coerce("1e10"));
+    assertEquals("1e999", ScalarClassifier.coerce("1e999"));
+  }
+
+  @Test
+  public void testCoerceWholeDecimalsToIntegers() {
+    assertEquals(1, ScalarClassifier.coerce("1.0"));
+    assertEquals(5, ScalarClassifier.coerce("5."));
+    assertEquals(-3, ScalarClassifier.coerce("-3.00"));
+    assertEquals(1500, ScalarClassifier.coerce("1.5e3"));
+    assertEquals(Integer.MAX_VALUE, ScalarClassifier.coerce("2147483647.0"));
+    assertEquals(2147483648.0, ScalarClassifier.coerce("2147483648.0"));
+  }
+
+  @Test
+  public void testNonScalarsAreUnchanged() {
+    assertNull(ScalarClassifier.coerce(null));
+    assertEquals("", ScalarClassifier.coerce(""));
+    String[] values = {"mptest@mparticle.com", "-", "+", ".", "1e", "1e+", "1.2.3", "12a", " 12", "12 ",
+        "NaN", "Infinity", "0x1F", "1.5d", "1,000"};
+    for (String value : values) {
+      assertSame(value, ScalarClassifier.coerce(value));
+    }
+  }
+}
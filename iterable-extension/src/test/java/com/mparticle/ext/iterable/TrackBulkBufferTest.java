@@ -0,0 +1,63 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.TrackRequest;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrackBulkBufferTest {
+
+  @Test
+  public void testDrainChunksSplitsByEventCount() {
+    TrackBulkBuffer buffer = new TrackBulkBuffer(2, TrackBulkBuffer.MAX_PAYLOAD_BYTES);
+    for (int i = 0; i < 5; i++) {
+      buffer.add("key", new TrackRequest("Event " + i), UUID.randomUUID());
+    }
+    List<TrackBulkBuffer.Chunk> chunks = buffer.drainChunks();
+    assertEquals(3, chunks.size());
+    assertEquals(2, chunks.get(0).entries.size());
+    assertEquals(1, chunks.get(2).entries.size());
+    assertTrue("Draining should empty the buffer", buffer.isEmpty());
+  }
+
+  @Test
+  public void testDrainChunksSplitsByPayloadSize() {
+    TrackRequest request = new TrackRequest("Event");
+    int requestSize = TrackBulkBuffer.estimateSize(request);
+    // Room for the request overhead plus two events per chunk
+    TrackBulkBuffer buffer = new TrackBulkBuffer(TrackBulkBuffer.MAX_EVENTS_PER_REQUEST, requestSize * 3);
+    for (int i = 0; i < 4; i++) {
+      buffer.add("key", new TrackRequest("Event"), UUID.randomUUID());
+    }
+    assertEquals(2, buffer.drainChunks().size());
+  }
+
+  @Test
+  public void testDrainChunksGroupsByApiKey() {
+    TrackBulkBuffer buffer = new TrackBulkBuffer();
+    buffer.add("key 1", new TrackRequest("Event"), UUID.randomUUID());
+    buffer.add("key 2", new TrackRequest("Event"), UUID.randomUUID());
+    buffer.add("key 1", new TrackRequest("Event"), UUID.randomUUID());
+    List<TrackBulkBuffer.Chunk> chunks = buffer.drainChunks();
+    assertEquals(2, chunks.size());
+    assertEquals("key 1", chunks.get(0).apiKey);
+    assertEquals(2, chunks.get(0).entries.size());
+  }
+
+  @Test
+  public void testDiscardSource() {
+    TrackBulkBuffer buffer = new TrackBulkBuffer();
+    buffer.setCurrentSource("message 1");
+    buffer.add("key", new TrackRequest("Event"), UUID.randomUUID());
+    buffer.setCurrentSource("message 2");
+    buffer.add("key", new TrackRequest("Event"), UUID.randomUUID());
+    buffer.discardSource("message 1");
+    List<TrackBulkBuffer.Chunk> chunks = buffer.drainChunks();
+    assertEquals(1, chunks.get(0).entries.size());
+    assertEquals("message 2", chunks.get(0).entries.get(0).source);
+  }
+}
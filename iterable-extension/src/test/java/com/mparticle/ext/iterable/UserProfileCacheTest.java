@@ -0,0 +1,94 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.UserUpdateRequest;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UserProfileCacheTest {
+
+  @Test
+  public void testIsUnchanged() {
+    UserProfileCache cache = new UserProfileCache(10, 1000);
+    assertFalse(cache.isUnchanged("user", 42, 0));
+
+    cache.recordSent("user", 42, 0);
+
+    assertTrue(cache.isUnchanged("user", 42, 999));
+    assertFalse(cache.isUnchanged("user", 43, 999));
+    assertFalse(cache.isUnchanged("other user", 42, 999));
+  }
+
+  @Test
+  public void testEntriesExpire() {
+    UserProfileCache cache = new UserProfileCache(10, 1000);
+    cache.recordSent("user", 42, 0);
+
+    assertFalse(cache.isUnchanged("user", 42, 1000));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() {
+    UserProfileCache cache = new UserProfileCache(2, 1000);
+    cache.recordSent("a", 1, 0);
+    cache.recordSent("b", 2, 0);
+    cache.isUnchanged("a", 1, 0);
+    cache.recordSent("c", 3, 0);
+
+    assertTrue(cache.isUnchanged("a", 1, 0));
+    assertFalse(cache.isUnchanged("b", 2, 0));
+    assertTrue(cache.isUnchanged("c", 3, 0));
+  }
+
+  @Test
+  public void testHashIgnoresFieldOrder() {
+    Map<String, Object> fields = new LinkedHashMap<>();
+    fields.put("a", "1");
+    fields.put("b", 2);
+    Map<String, Object> reversed = new LinkedHashMap<>();
+    reversed.put("b", 2);
+    reversed.put("a", "1");
+
+    assertEquals(UserProfileCache.hash(fields), UserProfileCache.hash(reversed));
+  }
+
+  @Test
+  public void testHashDistinguishesValues() {
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("orders", "17");
+    long stringHash = UserProfileCache.hash(fields);
+    fields.put("orders", 17);
+    long intHash = UserProfileCache.hash(fields);
+    fields.put("orders", "18");
+    long changedHash = UserProfileCache.hash(fields);
+    Map<String, Object> shifted = new HashMap<>();
+    shifted.put("order", "s17");
+
+    assertNotEquals(stringHash, intHash);
+    assertNotEquals(stringHash, changedHash);
+    assertNotEquals(stringHash, UserProfileCache.hash(shifted));
+    // "Aa" and "BB" share a String.hashCode
+    assertNotEquals(UserProfileCache.hash(singleField("Aa")), UserProfileCache.hash(singleField("BB")));
+  }
+
+  @Test
+  public void testGetKey() {
+    UserUpdateRequest request = new UserUpdateRequest();
+    request.email = "mptest@mparticle.com";
+    String emailKey = UserProfileCache.getKey("api key", request);
+    request.userId = "123456";
+
+    assertNotEquals(emailKey, UserProfileCache.getKey("api key", request));
+    assertNotEquals(UserProfileCache.getKey("api key", request), UserProfileCache.getKey("other api key", request));
+  }
+
+  private static Map<String, Object> singleField(String value) {
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("name", value);
+    return fields;
+  }
+}
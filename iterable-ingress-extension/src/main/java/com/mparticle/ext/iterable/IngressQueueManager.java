@@ -1,40 +1,139 @@
 package com.mparticle.ext.iterable;
 
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
 import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Puts mParticle requests on the queue the Iterable extension consumes, encoded as described in
+ * QueueMessageEncoding.
+ *
+ * With compression enabled, bodies are gzipped and base64 encoded when that makes them smaller.
+ * Bodies that are still too large for SQS are written to the payload store, if there is one.
+ *
+ * Sends are asynchronous so the caller can keep working while they're in flight; it has to
+ * wait on the returned future before it reports the request as handled.
+ */
 public class IngressQueueManager {
   public static final long CLIENT_TIMEOUT_SECONDS = 10L;
-  private final SqsClient sqsClient;
+  // SQS limits a message to 256 KB including attributes.
+  public static final int MAX_MESSAGE_BYTES = 256 * 1024;
+  private final SqsAsyncClient sqsClient;
   private final String queueUrl;
+  private final boolean compressionEnabled;
+  private final PayloadStore payloadStore;
 
-  public IngressQueueManager(SqsClient sqsClient, String queueUrl) {
+  public IngressQueueManager(SqsAsyncClient sqsClient, String queueUrl) {
+    this(sqsClient, queueUrl, false, null);
+  }
+
+  /**
+   * @param payloadStore where to put bodies that are too large for SQS, or null to send them as is
+   */
+  public IngressQueueManager(SqsAsyncClient sqsClient, String queueUrl, boolean compressionEnabled,
+                             PayloadStore payloadStore) {
     this.sqsClient = sqsClient;
     this.queueUrl = queueUrl;
+    this.compressionEnabled = compressionEnabled;
+    this.payloadStore = payloadStore;
   }
 
-  public void enqueueMessage(String message) {
-    SendMessageRequest req = SendMessageRequest.builder()
+  /**
+   * @return a future that completes once SQS accepted the message, or completes exceptionally if
+   * the message couldn't be sent or its body couldn't be written to the payload store
+   */
+  public CompletableFuture<Void> enqueueMessage(String message) {
+    SendMessageRequest request;
+    try {
+      request = createRequest(message);
+    } catch (IOException e) {
+      CompletableFuture<Void> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    return sqsClient.sendMessage(request).thenApply(response -> null);
+  }
+
+  private SendMessageRequest createRequest(String message) throws IOException {
+    String body = message;
+    Map<String, MessageAttributeValue> attributes = new HashMap<>();
+    if (compressionEnabled) {
+      String compressed = QueueMessageEncoding.gzipBase64(message);
+      if (compressed.length() < utf8Length(message)) {
+        body = compressed;
+        attributes.put(QueueMessageEncoding.CONTENT_ENCODING_ATTRIBUTE, stringAttribute(QueueMessageEncoding.GZIP_BASE64));
+      }
+    }
+    if (payloadStore != null && utf8Length(body) + getSize(attributes) > MAX_MESSAGE_BYTES) {
+      String key = payloadStore.put(body.getBytes(StandardCharsets.UTF_8));
+      attributes.put(QueueMessageEncoding.PAYLOAD_KEY_ATTRIBUTE, stringAttribute(key));
+      body = key;
+    }
+    return SendMessageRequest.builder()
             .queueUrl(queueUrl)
-            .messageBody(message)
+            .messageBody(body)
+            .messageAttributes(attributes)
             .build();
-    sqsClient.sendMessage(req);
   }
 
+  private static MessageAttributeValue stringAttribute(String value) {
+    return MessageAttributeValue.builder().dataType("String").stringValue(value).build();
+  }
+
+  /**
+   * SQS counts the name, data type and value of each attribute towards the message size.
+   */
+  private static int getSize(Map<String, MessageAttributeValue> attributes) {
+    int size = 0;
+    for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+      size += utf8Length(attribute.getKey()) + utf8Length(attribute.getValue().dataType())
+              + utf8Length(attribute.getValue().stringValue());
+    }
+    return size;
+  }
+
+  private static int utf8Length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * The client's Netty event loop and connection pool live as long as the queue manager, so a
+   * warm Lambda container reuses them across invocations.
+   */
   public static IngressQueueManager create() {
     ClientOverrideConfiguration clientConfig = ClientOverrideConfiguration.builder()
             .apiCallAttemptTimeout(Duration.ofSeconds(CLIENT_TIMEOUT_SECONDS))
             .build();
-    SqsClient sqsClient = SqsClient.builder()
+    SqsAsyncClient sqsClient = SqsAsyncClient.builder()
             .region(Region.US_EAST_1)
             .overrideConfiguration(clientConfig)
+            .httpClientBuilder(NettyNioAsyncHttpClient.builder())
             .build();
     String queueUrl = Objects.requireNonNull(System.getenv("QUEUE_URL"));
-    return new IngressQueueManager(sqsClient, queueUrl);
+    boolean compressionEnabled = Boolean.parseBoolean(System.getenv("QUEUE_COMPRESSION_ENABLED"));
+    return new IngressQueueManager(sqsClient, queueUrl, compressionEnabled, S3PayloadStore.fromEnv());
   }
 }
@@ -2,20 +2,61 @@ package com.mparticle.ext.iterable;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mparticle.sdk.model.Message;
 import com.mparticle.sdk.model.MessageSerializer;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingResponse;
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class IterableLambdaEndpoint implements RequestStreamHandler {
 
   public static final MessageSerializer serializer = new MessageSerializer();
   public static final IngressExtension processor = new IngressExtension();
+  static final String EVENT_PROCESSING_REQUEST_TYPE = "event_processing_request";
+  private static final JsonFactory jsonFactory = new JsonFactory();
+  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final ObjectNode eventProcessingResponseTemplate = createEventProcessingResponseTemplate();
+  static final String[] PRIMING_RESOURCES = {
+      "/priming/EventProcessingRequest.json",
+      "/priming/ModuleRegistrationRequest.json",
+      "/priming/AudienceMembershipChangeRequest.json"
+  };
+  // Whether priming succeeded, or null until it has run
+  private static Boolean primed;
   public IngressQueueManager queueManager;
 
+  /**
+   * Lambda constructs the handler during its init phase, so the SQS client is built and the
+   * serializers are primed before the first invocation. Without a QUEUE_URL, e.g. in tests, the
+   * queue manager is left for the caller to set.
+   */
+  public IterableLambdaEndpoint() {
+    if (System.getenv("QUEUE_URL") != null) {
+      queueManager = IngressQueueManager.create();
+    }
+    prime();
+  }
+
+  /**
+   * Event processing requests are only queued, since IngressExtension doesn't process their
+   * events, so they're answered with an empty EventProcessingResponse without deserializing them.
+   * Registration and audience requests go through the IngressExtension.
+   *
+   * The request is handled while it's being sent to the queue, and the response is only written
+   * once the queue accepted it. If the send fails, the invocation fails so mParticle retries it.
+   */
   @Override
   public void handleRequest(InputStream input, OutputStream output, Context context)
       throws IOException {
@@ -23,10 +64,107 @@ public class IterableLambdaEndpoint implements RequestStreamHandler {
       queueManager = IngressQueueManager.create();
     }
     String mparticleRequest = IOUtils.toString(input, "UTF-8");
-    queueManager.enqueueMessage(mparticleRequest);
+    CompletableFuture<Void> enqueued = queueManager.enqueueMessage(mparticleRequest);
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    if (EVENT_PROCESSING_REQUEST_TYPE.equals(peekMessageType(mparticleRequest))) {
+      mapper.writeValue(response, createEventProcessingResponse());
+    } else {
+      Message request = serializer.deserialize(mparticleRequest, Message.class);
+      serializer.serialize(response, processor.processMessage(request));
+    }
 
-    Message request = serializer.deserialize(mparticleRequest, Message.class);
-    Message response = processor.processMessage(request);
-    serializer.serialize(output, response);
+    awaitEnqueued(enqueued);
+    response.writeTo(output);
+  }
+
+  private static void awaitEnqueued(CompletableFuture<Void> enqueued) throws IOException {
+    try {
+      enqueued.get();
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to enqueue the mParticle request", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while enqueueing the mParticle request", e);
+    }
+  }
+
+  /**
+   * Load and initialize the classes a request goes through, so the first invocation doesn't pay
+   * for them: each bundled priming message is peeked, deserialized, processed and its response
+   * serialized, and a body is compressed the way the queue manager does. Nothing is queued, so
+   * this can also run before a checkpoint is taken, e.g. from a CRaC beforeCheckpoint hook. Only
+   * the first call in a JVM does any work.
+   *
+   * @return false if priming failed; the handler still works, the first invocation is just slower
+   */
+  public static synchronized boolean prime() {
+    if (primed == null) {
+      primed = primeClasses();
+    }
+    return primed;
+  }
+
+  private static boolean primeClasses() {
+    try {
+      for (String resource : PRIMING_RESOURCES) {
+        String message;
+        try (InputStream input = IterableLambdaEndpoint.class.getResourceAsStream(resource)) {
+          message = IOUtils.toString(input, "UTF-8");
+        }
+        peekMessageType(message);
+        Message request = serializer.deserialize(message, Message.class);
+        serializer.serialize(processor.processMessage(request));
+        QueueMessageEncoding.gzipBase64(message);
+      }
+      mapper.writeValueAsString(createEventProcessingResponse());
+      return true;
+    } catch (IOException | RuntimeException e) {
+      ObjectNode logMessage = mapper.createObjectNode();
+      logMessage.put("message", "Unable to prime the Lambda: " + e);
+      System.out.println(logMessage);
+      return false;
+    }
+  }
+
+  /**
+   * Read the top-level "type" field of a message, skipping over everything else.
+   *
+   * @return the message type, or null if the message has none
+   */
+  static String peekMessageType(String message) throws IOException {
+    try (JsonParser parser = jsonFactory.createParser(message)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("type".equals(fieldName)) {
+          return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+        }
+        parser.skipChildren();
+      }
+      return null;
+    }
+  }
+
+  static ObjectNode createEventProcessingResponse() {
+    ObjectNode response = eventProcessingResponseTemplate.deepCopy();
+    response.put("id", UUID.randomUUID().toString());
+    response.put("timestamp_ms", System.currentTimeMillis());
+    return response;
+  }
+
+  /**
+   * Serialize an empty response once with the SDK, so the fast path writes exactly the fields
+   * the SDK would.
+   */
+  private static ObjectNode createEventProcessingResponseTemplate() {
+    try {
+      return (ObjectNode) mapper.readTree(serializer.serialize(new EventProcessingResponse()));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to serialize an EventProcessingResponse", e);
+    }
   }
 }
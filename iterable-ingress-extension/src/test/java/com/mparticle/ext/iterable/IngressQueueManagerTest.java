@@ -0,0 +1,193 @@
+package com.mparticle.ext.iterable;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.*;
+
+public class IngressQueueManagerTest {
+  private static final String QUEUE_URL = "https://sqs.us-east-1.amazonaws.com/123456789012/ingress";
+
+  @Test
+  public void testMessagesAreSentUncompressedByDefault() throws IOException {
+    LocalSqsClient sqs = new LocalSqsClient();
+    IngressQueueManager queueManager = new IngressQueueManager(sqs, QUEUE_URL);
+    String message = readTestFixture("EventProcessingRequest_ios.json");
+
+    queueManager.enqueueMessage(message).join();
+
+    assertEquals(1, sqs.messages.size());
+    assertEquals(message, sqs.messages.get(0).body);
+    assertTrue(sqs.messages.get(0).attributes.isEmpty());
+  }
+
+  @Test
+  public void testCompressedMessagesRoundTrip() throws IOException {
+    LocalSqsClient sqs = new LocalSqsClient();
+    IngressQueueManager queueManager = new IngressQueueManager(sqs, QUEUE_URL, true, null);
+    String message = readTestFixture("EventProcessingRequest_ios.json");
+
+    queueManager.enqueueMessage(message).join();
+
+    SentMessage sent = sqs.messages.get(0);
+    assertEquals(QueueMessageEncoding.GZIP_BASE64,
+        sent.attributes.get(QueueMessageEncoding.CONTENT_ENCODING_ATTRIBUTE).stringValue());
+    assertTrue(sent.body.length() < message.length());
+    assertEquals(message, decode(sent, null));
+  }
+
+  @Test
+  public void testSmallMessagesAreNotCompressed() {
+    LocalSqsClient sqs = new LocalSqsClient();
+    IngressQueueManager queueManager = new IngressQueueManager(sqs, QUEUE_URL, true, null);
+
+    queueManager.enqueueMessage("{}").join();
+
+    assertEquals("{}", sqs.messages.get(0).body);
+    assertTrue(sqs.messages.get(0).attributes.isEmpty());
+  }
+
+  @Test
+  public void testOversizeMessagesAreSpilledToPayloadStore() throws IOException {
+    LocalSqsClient sqs = new LocalSqsClient();
+    InMemoryPayloadStore store = new InMemoryPayloadStore();
+    IngressQueueManager queueManager = new IngressQueueManager(sqs, QUEUE_URL, true, store);
+    // Random content doesn't compress, so it stays too large for SQS
+    String message = randomString(IngressQueueManager.MAX_MESSAGE_BYTES);
+
+    queueManager.enqueueMessage(message).join();
+
+    SentMessage sent = sqs.messages.get(0);
+    assertTrue(sent.attributes.containsKey(QueueMessageEncoding.PAYLOAD_KEY_ATTRIBUTE));
+    assertTrue(sent.body.length() < 100);
+    assertEquals(1, store.payloads.size());
+    assertEquals(message, decode(sent, store));
+  }
+
+  @Test
+  public void testPayloadStoreFailureFailsTheFuture() {
+    LocalSqsClient sqs = new LocalSqsClient();
+    PayloadStore store = new PayloadStore() {
+      @Override
+      public String put(byte[] payload) throws IOException {
+        throw new IOException("S3 is unavailable");
+      }
+
+      @Override
+      public byte[] get(String key) {
+        return null;
+      }
+    };
+    IngressQueueManager queueManager = new IngressQueueManager(sqs, QUEUE_URL, false, store);
+
+    CompletableFuture<Void> enqueued = queueManager.enqueueMessage(randomString(IngressQueueManager.MAX_MESSAGE_BYTES + 1));
+
+    try {
+      enqueued.join();
+      fail("A body that couldn't be stored should fail the send");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    assertTrue(sqs.messages.isEmpty());
+  }
+
+  /**
+   * Reads a message back the way the Iterable extension does.
+   */
+  private static String decode(SentMessage message, PayloadStore store) throws IOException {
+    byte[] body = message.body.getBytes(StandardCharsets.UTF_8);
+    MessageAttributeValue payloadKey = message.attributes.get(QueueMessageEncoding.PAYLOAD_KEY_ATTRIBUTE);
+    if (payloadKey != null) {
+      body = store.get(payloadKey.stringValue());
+    }
+    MessageAttributeValue encoding = message.attributes.get(QueueMessageEncoding.CONTENT_ENCODING_ATTRIBUTE);
+    if (encoding == null) {
+      return new String(body, StandardCharsets.UTF_8);
+    }
+    assertEquals(QueueMessageEncoding.GZIP_BASE64, encoding.stringValue());
+    return QueueMessageEncoding.decodeGzipBase64(body);
+  }
+
+  private static String randomString(int length) {
+    Random random = new Random(42);
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char) ('!' + random.nextInt(90)));
+    }
+    return builder.toString();
+  }
+
+  private static String readTestFixture(String fileName) throws IOException {
+    return IOUtils.toString(new FileInputStream(new File("src/test/resources/" + fileName)), StandardCharsets.UTF_8);
+  }
+
+  private static class SentMessage {
+    final String body;
+    final Map<String, MessageAttributeValue> attributes;
+
+    SentMessage(String body, Map<String, MessageAttributeValue> attributes) {
+      this.body = body;
+      this.attributes = attributes;
+    }
+  }
+
+  /**
+   * Stands in for SQS, enforcing the limits the queue manager has to respect.
+   */
+  private static class LocalSqsClient implements SqsAsyncClient {
+    final List<SentMessage> messages = new ArrayList<>();
+
+    @Override
+    public CompletableFuture<SendMessageResponse> sendMessage(SendMessageRequest request) {
+      assertEquals(QUEUE_URL, request.queueUrl());
+      assertTrue(getSize(request.messageBody(), request.messageAttributes()) <= IngressQueueManager.MAX_MESSAGE_BYTES);
+      messages.add(new SentMessage(request.messageBody(), request.messageAttributes()));
+      return CompletableFuture.completedFuture(
+          SendMessageResponse.builder().messageId(UUID.randomUUID().toString()).build());
+    }
+
+    @Override
+    public String serviceName() {
+      return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static int getSize(String body, Map<String, MessageAttributeValue> attributes) {
+      int size = body.getBytes(StandardCharsets.UTF_8).length;
+      for (Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+        size += attribute.getKey().length() + attribute.getValue().dataType().length()
+            + attribute.getValue().stringValue().length();
+      }
+      return size;
+    }
+  }
+
+  private static class InMemoryPayloadStore implements PayloadStore {
+    final Map<String, byte[]> payloads = new HashMap<>();
+
+    @Override
+    public String put(byte[] payload) {
+      String key = UUID.randomUUID().toString();
+      payloads.put(key, payload);
+      return key;
+    }
+
+    @Override
+    public byte[] get(String key) {
+      return payloads.get(key);
+    }
+  }
+}
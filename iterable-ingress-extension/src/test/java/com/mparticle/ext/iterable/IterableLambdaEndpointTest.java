@@ -2,14 +2,21 @@ package com.mparticle.ext.iterable;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
 import java.io.*;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class IterableLambdaEndpointTest {
   private static final ObjectMapper mapper = new ObjectMapper();
@@ -20,6 +27,8 @@ public class IterableLambdaEndpointTest {
   public void setup() {
     lambda = new IterableLambdaEndpoint();
     lambda.queueManager = Mockito.mock(IngressQueueManager.class);
+    CompletableFuture<Void> enqueued = CompletableFuture.completedFuture(null);
+    Mockito.when(lambda.queueManager.enqueueMessage(Mockito.anyString())).thenReturn(enqueued);
   }
 
   @Test
@@ -61,6 +70,57 @@ public class IterableLambdaEndpointTest {
     }
   }
 
+  @Test
+  public void testEventProcessingResponseIsFreshForEachRequest() throws IOException {
+    ByteArrayOutputStream firstOutput = new ByteArrayOutputStream();
+    ByteArrayOutputStream secondOutput = new ByteArrayOutputStream();
+    lambda.handleRequest(readTestFixture("EventProcessingRequest_ios.json"), firstOutput, null);
+    lambda.handleRequest(readTestFixture("EventProcessingRequest_ios.json"), secondOutput, null);
+
+    Map<String, Object> first = mapper.readValue(firstOutput.toString(), new TypeReference<Map<String, Object>>() {});
+    Map<String, Object> second = mapper.readValue(secondOutput.toString(), new TypeReference<Map<String, Object>>() {});
+    assertEquals("event_processing_response", first.get("type"));
+    assertNotEquals(first.get("id"), second.get("id"));
+    Mockito.verify(lambda.queueManager, Mockito.times(2)).enqueueMessage(Mockito.anyString());
+  }
+
+  @Test
+  public void testPrime() {
+    assertTrue(IterableLambdaEndpoint.prime());
+    for (String resource : IterableLambdaEndpoint.PRIMING_RESOURCES) {
+      assertNotNull(resource, IterableLambdaEndpoint.class.getResource(resource));
+    }
+  }
+
+  @Test
+  public void testPeekMessageType() throws IOException {
+    assertEquals("event_processing_request",
+        IterableLambdaEndpoint.peekMessageType(IOUtils.toString(readTestFixture("EventProcessingRequest_ios.json"), "UTF-8")));
+    assertEquals("module_registration_request",
+        IterableLambdaEndpoint.peekMessageType(IOUtils.toString(readTestFixture("ModuleRegistrationRequest.json"), "UTF-8")));
+    // Nested type fields don't count, wherever the top-level one is
+    assertEquals("audience_membership_change_request", IterableLambdaEndpoint.peekMessageType(
+        "{\"account\":{\"type\":\"nested\"},\"events\":[{\"type\":\"custom_event\"}],\"type\":\"audience_membership_change_request\"}"));
+    assertNull(IterableLambdaEndpoint.peekMessageType("{\"id\":\"foo\"}"));
+    assertNull(IterableLambdaEndpoint.peekMessageType("[]"));
+  }
+
+  @Test
+  public void testResponseWaitsForQueue() throws IOException {
+    CompletableFuture<Void> enqueued = new CompletableFuture<>();
+    Mockito.when(lambda.queueManager.enqueueMessage(Mockito.anyString())).thenReturn(enqueued);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    enqueued.completeExceptionally(new IllegalStateException("SQS is unavailable"));
+
+    try {
+      lambda.handleRequest(readTestFixture("EventProcessingRequest_ios.json"), output, null);
+      fail("Requests that weren't queued should fail so mParticle retries them");
+    } catch (IOException e) {
+      assertEquals("SQS is unavailable", e.getCause().getMessage());
+    }
+    assertEquals(0, output.size());
+  }
+
   private static Map<String, Object> getFixtureAsMap(String fileName) throws IOException {
     InputStream fixture = readTestFixture(fileName);
     Map<String, Object> fixtureMap =
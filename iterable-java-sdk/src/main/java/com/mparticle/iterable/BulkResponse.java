@@ -0,0 +1,54 @@
+package com.mparticle.iterable;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Common response to Iterable's bulk endpoints. Users that could not be processed are reported
+ * individually by the email or userId that caused them to fail.
+ */
+public abstract class BulkResponse {
+    public int successCount = -1;
+    public int failCount = -1;
+    public List<String> invalidEmails;
+    public List<String> invalidUserIds;
+    public FailedUpdates failedUpdates;
+
+    public static class FailedUpdates {
+        public List<String> invalidEmails;
+        public List<String> invalidUserIds;
+        public List<String> notFoundEmails;
+        public List<String> notFoundUserIds;
+        public List<String> forgottenEmails;
+        public List<String> forgottenUserIds;
+    }
+
+    public Set<String> getFailedEmails() {
+        Set<String> emails = new HashSet<>();
+        addAll(emails, invalidEmails);
+        if (failedUpdates != null) {
+            addAll(emails, failedUpdates.invalidEmails);
+            addAll(emails, failedUpdates.notFoundEmails);
+            addAll(emails, failedUpdates.forgottenEmails);
+        }
+        return emails;
+    }
+
+    public Set<String> getFailedUserIds() {
+        Set<String> userIds = new HashSet<>();
+        addAll(userIds, invalidUserIds);
+        if (failedUpdates != null) {
+            addAll(userIds, failedUpdates.invalidUserIds);
+            addAll(userIds, failedUpdates.notFoundUserIds);
+            addAll(userIds, failedUpdates.forgottenUserIds);
+        }
+        return userIds;
+    }
+
+    private static void addAll(Set<String> set, List<String> values) {
+        if (values != null) {
+            set.addAll(values);
+        }
+    }
+}
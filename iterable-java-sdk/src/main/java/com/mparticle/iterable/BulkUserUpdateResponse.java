@@ -0,0 +1,7 @@
+package com.mparticle.iterable;
+
+import java.util.List;
+
+public class BulkUserUpdateResponse extends BulkResponse {
+    public List<String> filteredOutFields;
+}
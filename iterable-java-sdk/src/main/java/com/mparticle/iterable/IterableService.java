@@ -25,16 +25,24 @@ public interface IterableService {
     String HOST = "api.iterable.com";
     String PARAM_API_KEY = "api_key";
     long SERVICE_TIMEOUT_SECONDS = 60;
+    int MAX_IDLE_CONNECTIONS = 10;
+    long KEEP_ALIVE_DURATION_SECONDS = 60;
 
     @POST("api/events/track")
     Call<IterableApiResponse> track(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body TrackRequest trackRequest);
 
+    @POST("api/events/trackBulk")
+    Call<TrackBulkResponse> trackBulk(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body TrackBulkRequest trackBulkRequest);
+
     @POST("api/events/trackPushOpen")
     Call<IterableApiResponse> trackPushOpen(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body TrackPushOpenRequest registerRequest);
 
     @POST("api/users/update")
     Call<IterableApiResponse> userUpdate(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body UserUpdateRequest trackRequest);
 
+    @POST("api/users/bulkUpdate")
+    Call<BulkUserUpdateResponse> bulkUserUpdate(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body BulkUserUpdateRequest bulkUserUpdateRequest);
+
     @POST("api/users/updateEmail")
     Call<IterableApiResponse> updateEmail(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body UpdateEmailRequest updateEmailRequest);
 
@@ -71,17 +79,45 @@ public interface IterableService {
     }
 
     static IterableService newInstance() {
-        final OkHttpClient client = new OkHttpClient.Builder()
-                .addInterceptor(new HeadersInterceptor())
-                .connectTimeout(SERVICE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .readTimeout(SERVICE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-                .build();
+        return newInstance(newHttpClient());
+    }
+
+    static IterableService newInstance(OkHttpClient client) {
         final HttpUrl url = new HttpUrl.Builder()
                 .scheme("https")
                 .host(IterableService.HOST)
                 .build();
+        return newInstance(url, client);
+    }
+
+    /**
+     * Build a client whose connection pool keeps idle connections to the API alive between
+     * requests. Share a single instance wherever possible so TLS sessions are reused.
+     */
+    static OkHttpClient newHttpClient() {
+        return newHttpClient(null);
+    }
+
+    /**
+     * @param rateLimiter installed after the HeadersInterceptor when not null
+     */
+    static OkHttpClient newHttpClient(RateLimitInterceptor rateLimiter) {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .addInterceptor(new HeadersInterceptor());
+        if (rateLimiter != null) {
+            builder.addInterceptor(rateLimiter);
+        }
+        return builder
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_SECONDS, TimeUnit.SECONDS))
+                .retryOnConnectionFailure(true)
+                .connectTimeout(SERVICE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(SERVICE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
+    static IterableService newInstance(HttpUrl baseUrl, OkHttpClient client) {
         final Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(url)
+                .baseUrl(baseUrl)
                 .client(client)
                 .addConverterFactory(GsonConverterFactory.create())
                 .build();
@@ -0,0 +1,149 @@
+package com.mparticle.iterable;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side token bucket rate limiter for the Iterable API, with one bucket per API key and
+ * endpoint path. Requests are spaced out to the bucket's rate; a request that would have to wait
+ * longer than maxWaitMillis fails fast with a {@link RateLimitedException} instead of being sent.
+ *
+ * A 429 response with a Retry-After header pauses its bucket for the requested time and empties
+ * it, so requests resume at the bucket's rate rather than in a burst.
+ */
+public class RateLimitInterceptor implements Interceptor {
+
+    static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+
+    private final double defaultRequestsPerSecond;
+    private final Map<String, Double> requestsPerSecondByPath;
+    private final long maxWaitNanos;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultRequestsPerSecond the rate for paths without their own entry
+     * @param requestsPerSecondByPath rates for specific paths, e.g. "/api/events/track"
+     * @param maxWaitMillis the longest a request may wait for its bucket before failing fast
+     */
+    public RateLimitInterceptor(double defaultRequestsPerSecond, Map<String, Double> requestsPerSecondByPath, long maxWaitMillis) {
+        this.defaultRequestsPerSecond = defaultRequestsPerSecond;
+        this.requestsPerSecondByPath = new HashMap<>();
+        for (Map.Entry<String, Double> entry : requestsPerSecondByPath.entrySet()) {
+            String path = entry.getKey().startsWith("/") ? entry.getKey() : "/" + entry.getKey();
+            this.requestsPerSecondByPath.put(path, entry.getValue());
+        }
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    @Override
+    public Response intercept(Interceptor.Chain chain) throws IOException {
+        Request request = chain.request();
+        Bucket bucket = getBucket(request.url());
+        long waitNanos = bucket.reserve(System.nanoTime(), maxWaitNanos);
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+            }
+        }
+        Response response = chain.proceed(request);
+        if (response.code() == 429) {
+            long retryAfterMillis = parseRetryAfterMillis(response.header("Retry-After"));
+            bucket.pause(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+        }
+        return response;
+    }
+
+    private Bucket getBucket(HttpUrl url) {
+        String path = url.encodedPath();
+        String apiKey = url.queryParameter(IterableService.PARAM_API_KEY);
+        return buckets.computeIfAbsent(apiKey + " " + path, key ->
+                new Bucket(requestsPerSecondByPath.getOrDefault(path, defaultRequestsPerSecond), System.nanoTime()));
+    }
+
+    /**
+     * Only the delay-seconds form of Retry-After is supported; anything else falls back to a
+     * one second pause.
+     */
+    static long parseRetryAfterMillis(String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                long seconds = Long.parseLong(retryAfter.trim());
+                if (seconds >= 0) {
+                    return TimeUnit.SECONDS.toMillis(seconds);
+                }
+            } catch (NumberFormatException ignored) {
+
+            }
+        }
+        return DEFAULT_RETRY_AFTER_MILLIS;
+    }
+
+    /**
+     * A token bucket holding up to one second's worth of requests. Tokens may go negative, which
+     * reserves a future slot for the caller so concurrent requests are spread out evenly.
+     */
+    static class Bucket {
+        private final double nanosPerToken;
+        private final double capacity;
+        private double tokens;
+        private long lastRefillNanos;
+        private long pausedUntilNanos;
+
+        Bucket(double requestsPerSecond, long nowNanos) {
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+            this.capacity = Math.max(1, requestsPerSecond);
+            this.tokens = capacity;
+            this.lastRefillNanos = nowNanos;
+            this.pausedUntilNanos = nowNanos;
+        }
+
+        /**
+         * Reserve a slot for one request.
+         *
+         * @return how long the caller must wait before sending
+         * @throws RateLimitedException if that wait would be longer than maxWaitNanos
+         */
+        synchronized long reserve(long nowNanos, long maxWaitNanos) throws RateLimitedException {
+            refill(nowNanos);
+            // Tokens accrue from lastRefillNanos, which is the end of the pause while paused
+            long tokenReadyNanos = tokens >= 1 ? lastRefillNanos
+                    : lastRefillNanos + (long) Math.ceil((1 - tokens) * nanosPerToken);
+            long waitNanos = Math.max(0, Math.max(tokenReadyNanos, pausedUntilNanos) - nowNanos);
+            if (waitNanos > maxWaitNanos) {
+                throw new RateLimitedException("Client-side rate limit reached",
+                        TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            }
+            tokens -= 1;
+            return waitNanos;
+        }
+
+        /**
+         * Hold every request until the pause is over, then let them through one token at a time.
+         */
+        synchronized void pause(long nowNanos, long pauseNanos) {
+            refill(nowNanos);
+            pausedUntilNanos = Math.max(pausedUntilNanos, nowNanos + pauseNanos);
+            tokens = Math.min(tokens, 1);
+            lastRefillNanos = Math.max(lastRefillNanos, pausedUntilNanos);
+        }
+
+        private void refill(long nowNanos) {
+            if (nowNanos > lastRefillNanos) {
+                tokens = Math.min(capacity, tokens + (nowNanos - lastRefillNanos) / nanosPerToken);
+                lastRefillNanos = nowNanos;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.mparticle.iterable;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link RateLimitInterceptor} instead of sending a request that would have to wait
+ * longer than allowed for its rate limit bucket.
+ */
+public class RateLimitedException extends IOException {
+
+    private final long retryAfterMillis;
+
+    public RateLimitedException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return how long until the bucket would have allowed the request
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,7 @@
+package com.mparticle.iterable;
+
+import java.util.List;
+
+public class TrackBulkResponse extends BulkResponse {
+    public List<String> disallowedEventNames;
+}
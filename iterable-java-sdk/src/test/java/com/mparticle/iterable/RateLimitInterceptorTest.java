@@ -0,0 +1,79 @@
+package com.mparticle.iterable;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateLimitInterceptorTest {
+
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBucketAllowsBurstThenSpacesRequests() throws Exception {
+        RateLimitInterceptor.Bucket bucket = new RateLimitInterceptor.Bucket(2, 0);
+
+        assertEquals(0, bucket.reserve(0, ONE_SECOND));
+        assertEquals(0, bucket.reserve(0, ONE_SECOND));
+        assertEquals(ONE_SECOND / 2, bucket.reserve(0, ONE_SECOND));
+        assertEquals(ONE_SECOND, bucket.reserve(0, ONE_SECOND));
+    }
+
+    @Test
+    public void testBucketRefillsOverTime() throws Exception {
+        RateLimitInterceptor.Bucket bucket = new RateLimitInterceptor.Bucket(1, 0);
+
+        assertEquals(0, bucket.reserve(0, 0));
+        assertEquals(0, bucket.reserve(ONE_SECOND, 0));
+    }
+
+    @Test
+    public void testBucketFailsFastWhenWaitIsTooLong() throws Exception {
+        RateLimitInterceptor.Bucket bucket = new RateLimitInterceptor.Bucket(1, 0);
+        bucket.reserve(0, 0);
+
+        try {
+            bucket.reserve(0, ONE_SECOND / 10);
+            fail("Expected a RateLimitedException");
+        } catch (RateLimitedException e) {
+            assertEquals(1000, e.getRetryAfterMillis());
+        }
+        // The rejected request shouldn't have used up a token
+        assertEquals(0, bucket.reserve(ONE_SECOND, 0));
+    }
+
+    @Test
+    public void testPausedBucketWaitsForRetryAfter() throws Exception {
+        RateLimitInterceptor.Bucket bucket = new RateLimitInterceptor.Bucket(10, 0);
+        bucket.pause(0, 3 * ONE_SECOND);
+
+        assertEquals(3 * ONE_SECOND, bucket.reserve(0, 5 * ONE_SECOND));
+        try {
+            bucket.reserve(ONE_SECOND, ONE_SECOND);
+            fail("Expected a RateLimitedException");
+        } catch (RateLimitedException e) {
+            // The first request after the pause took the only token
+            assertEquals(2100, e.getRetryAfterMillis());
+        }
+    }
+
+    @Test
+    public void testPausedBucketResumesWithoutBurst() throws Exception {
+        RateLimitInterceptor.Bucket bucket = new RateLimitInterceptor.Bucket(10, 0);
+        bucket.pause(0, ONE_SECOND);
+
+        // The bucket would have refilled during the pause, but only lets one request through
+        assertEquals(0, bucket.reserve(ONE_SECOND, 0));
+        assertEquals(ONE_SECOND / 10, bucket.reserve(ONE_SECOND, ONE_SECOND));
+        assertEquals(2 * ONE_SECOND / 10, bucket.reserve(ONE_SECOND, ONE_SECOND));
+    }
+
+    @Test
+    public void testParseRetryAfterMillis() {
+        assertEquals(5000, RateLimitInterceptor.parseRetryAfterMillis("5"));
+        assertEquals(RateLimitInterceptor.DEFAULT_RETRY_AFTER_MILLIS, RateLimitInterceptor.parseRetryAfterMillis(null));
+        assertEquals(RateLimitInterceptor.DEFAULT_RETRY_AFTER_MILLIS,
+                RateLimitInterceptor.parseRetryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}
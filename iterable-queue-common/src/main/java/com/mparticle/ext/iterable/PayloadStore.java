@@ -0,0 +1,17 @@
+package com.mparticle.ext.iterable;
+
+import java.io.IOException;
+
+/**
+ * Holds queue payloads that are too large for an SQS message. The message carries the key of
+ * the payload in its payloadKey attribute instead.
+ */
+public interface PayloadStore {
+
+  /**
+   * @return the key the payload can be read back with
+   */
+  String put(byte[] payload) throws IOException;
+
+  byte[] get(String key) throws IOException;
+}
@@ -0,0 +1,58 @@
+package com.mparticle.ext.iterable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How the ingress Lambda encodes mParticle requests on the queue the Iterable extension consumes.
+ *
+ * A body may be gzipped and base64 encoded, which is marked with a contentEncoding attribute of
+ * "gzip+base64". A body that's too large for SQS is written to a PayloadStore, and the message
+ * carries its key in a payloadKey attribute; the stored body keeps its content encoding.
+ */
+public final class QueueMessageEncoding {
+  public static final String CONTENT_ENCODING_ATTRIBUTE = "contentEncoding";
+  public static final String PAYLOAD_KEY_ATTRIBUTE = "payloadKey";
+  public static final String GZIP_BASE64 = "gzip+base64";
+
+  private QueueMessageEncoding() {
+  }
+
+  public static String gzipBase64(String message) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write(message.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return Base64.getEncoder().encodeToString(compressed.toByteArray());
+  }
+
+  /**
+   * @throws IOException if the body isn't gzipped and base64 encoded
+   */
+  public static String decodeGzipBase64(byte[] body) throws IOException {
+    byte[] compressed;
+    try {
+      compressed = Base64.getDecoder().decode(body);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("The body isn't valid base64", e);
+    }
+    ByteArrayOutputStream decompressed = new ByteArrayOutputStream(compressed.length * 4);
+    try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = gzip.read(buffer)) != -1) {
+        decompressed.write(buffer, 0, read);
+      }
+    }
+    return new String(decompressed.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
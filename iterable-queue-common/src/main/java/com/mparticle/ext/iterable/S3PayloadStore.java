@@ -0,0 +1,74 @@
+package com.mparticle.ext.iterable;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Stores oversize queue payloads in an S3 bucket. Payloads aren't deleted once they're read,
+ * since SQS may redeliver the message, so the bucket should expire objects with a lifecycle rule.
+ *
+ * The S3 client can be built on first use, so a Lambda only pays for it once it actually has a
+ * payload to store or read.
+ */
+public class S3PayloadStore implements PayloadStore {
+  private static final String KEY_PREFIX = "queue-payloads/";
+  private final String bucket;
+  private S3Client s3Client;
+
+  /**
+   * @param s3Client the client to use, or null to build one on first use
+   */
+  public S3PayloadStore(S3Client s3Client, String bucket) {
+    this.s3Client = s3Client;
+    this.bucket = bucket;
+  }
+
+  @Override
+  public String put(byte[] payload) throws IOException {
+    String key = KEY_PREFIX + UUID.randomUUID();
+    try {
+      getS3Client().putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(), RequestBody.fromBytes(payload));
+    } catch (SdkException e) {
+      throw new IOException("Unable to store queue payload in " + bucket, e);
+    }
+    return key;
+  }
+
+  @Override
+  public byte[] get(String key) throws IOException {
+    try {
+      return getS3Client().getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(key).build()).asByteArray();
+    } catch (SdkException e) {
+      throw new IOException("Unable to read queue payload " + key + " from " + bucket, e);
+    }
+  }
+
+  /**
+   * @return a store for the bucket named by PAYLOAD_BUCKET, or null if it isn't set
+   */
+  public static S3PayloadStore fromEnv() {
+    String bucket = System.getenv("PAYLOAD_BUCKET");
+    if (bucket == null || bucket.isEmpty()) {
+      return null;
+    }
+    return new S3PayloadStore(null, bucket);
+  }
+
+  private synchronized S3Client getS3Client() {
+    if (s3Client == null) {
+      s3Client = S3Client.builder()
+          .region(Region.US_EAST_1)
+          .httpClientBuilder(UrlConnectionHttpClient.builder())
+          .build();
+    }
+    return s3Client;
+  }
+}
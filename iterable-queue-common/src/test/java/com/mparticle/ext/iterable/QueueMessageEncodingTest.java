@@ -0,0 +1,33 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class QueueMessageEncodingTest {
+
+  @Test
+  public void testGzipBase64RoundTrip() throws IOException {
+    String message = "{\"type\":\"event_processing_request\",\"user_attributes\":{\"city\":\"Z\u00fcrich\"}}";
+
+    String encoded = QueueMessageEncoding.gzipBase64(message);
+
+    assertEquals(message, QueueMessageEncoding.decodeGzipBase64(encoded.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testDecodeRejectsInvalidBodies() {
+    for (String body : new String[]{"not base64!", "bm90IGd6aXA="}) {
+      try {
+        QueueMessageEncoding.decodeGzipBase64(body.getBytes(StandardCharsets.UTF_8));
+        fail("Decoding " + body + " should fail");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+}